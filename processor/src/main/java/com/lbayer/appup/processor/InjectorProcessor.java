@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.FilerException;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an <code>IInjector</code> for each class that uses <code>@Resource</code>, <code>@PostConstruct</code> or
+ * <code>@PreDestroy</code>, so that appup can create and inject instances without scanning them with reflection.
+ *
+ * The injector is generated in the package of the class. Private members are set through method handles, everything
+ * else is accessed directly. Classes that can't be handled, for example because they inject into final or static
+ * members, are skipped with a note and are injected with reflection as before.
+ */
+@SupportedAnnotationTypes({ InjectorProcessor.RESOURCE, InjectorProcessor.POST_CONSTRUCT, InjectorProcessor.PRE_DESTROY })
+public class InjectorProcessor extends AbstractProcessor
+{
+    static final String RESOURCE = "javax.annotation.Resource";
+    static final String POST_CONSTRUCT = "javax.annotation.PostConstruct";
+    static final String PRE_DESTROY = "javax.annotation.PreDestroy";
+
+    private static final String SERVICE_REF = "com.lbayer.appup.registry.ServiceRef";
+    private static final String RESOURCE_CONSTRUCTOR = "com.lbayer.appup.registry.ResourceConstructor";
+    private static final String INJECTOR = "com.lbayer.appup.internal.IInjector";
+    private static final String SUFFIX = "_AppupInjector";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        if (annotations.isEmpty())
+        {
+            return false;
+        }
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements()))
+        {
+            processType(type);
+        }
+
+        return false;
+    }
+
+    private void processType(TypeElement type)
+    {
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements()))
+        {
+            processType(nested);
+        }
+
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT))
+        {
+            return;
+        }
+
+        Plan plan = new Plan(type);
+        if (plan.members.isEmpty() && plan.callbacks.isEmpty() && findAnnotation(type, RESOURCE) == null)
+        {
+            return;
+        }
+
+        if (!plan.problems.isEmpty())
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "No injector generated, " + plan.problems.get(0), type);
+            return;
+        }
+
+        try
+        {
+            plan.write();
+        }
+        catch (FilerException e)
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "No injector generated: " + e.getMessage(), type);
+        }
+        catch (IOException e)
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Unable to write injector: " + e, type);
+        }
+    }
+
+    private static AnnotationMirror findAnnotation(Element element, String annotation)
+    {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors())
+        {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation))
+            {
+                return mirror;
+            }
+        }
+
+        return null;
+    }
+
+    private static String getPackage(Element element)
+    {
+        while (element.getKind() != ElementKind.PACKAGE)
+        {
+            element = element.getEnclosingElement();
+        }
+
+        return element.toString();
+    }
+
+    /**
+     * Whether code in the given package can refer to a type.
+     */
+    private static boolean isAccessible(TypeElement type, String pkg)
+    {
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS)
+        {
+            return false;
+        }
+
+        for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement())
+        {
+            Set<Modifier> modifiers = e.getModifiers();
+            boolean isPublic = modifiers.contains(Modifier.PUBLIC) || e.getEnclosingElement().getKind().isInterface();
+            if (modifiers.contains(Modifier.PRIVATE) || (!isPublic && !getPackage(e).equals(pkg)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * What the injector of a class does, in the same order that InjectionPlan finds it with reflection.
+     */
+    private final class Plan
+    {
+        private final TypeElement type;
+        private final String pkg;
+        private final List<Member> members = new ArrayList<>();
+        private final Map<String, List<String>> callbacks = new LinkedHashMap<>();
+        private final List<String> problems = new ArrayList<>();
+
+        private Plan(TypeElement type)
+        {
+            this.type = type;
+            this.pkg = getPackage(type);
+
+            if (!isAccessible(type, pkg))
+            {
+                problems.add("the class is not accessible from its package");
+            }
+            else if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+            {
+                problems.add("the class is an inner class");
+            }
+
+            // super class members first, the same as the reflective scan
+            Deque<TypeElement> hierarchy = new ArrayDeque<>();
+            for (TypeElement t = type; t != null && t.getSuperclass().getKind() == TypeKind.DECLARED; t = asTypeElement(t.getSuperclass()))
+            {
+                hierarchy.push(t);
+            }
+
+            for (TypeElement declaring : hierarchy)
+            {
+                addResources(declaring);
+            }
+
+            addCallbacks(POST_CONSTRUCT);
+            addCallbacks(PRE_DESTROY);
+        }
+
+        private void addResources(TypeElement declaring)
+        {
+            for (VariableElement field : ElementFilter.fieldsIn(declaring.getEnclosedElements()))
+            {
+                AnnotationMirror resource = findAnnotation(field, RESOURCE);
+                if (resource == null)
+                {
+                    continue;
+                }
+
+                if (field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.FINAL))
+                {
+                    problems.add("the field is static or final: " + field);
+                }
+
+                addMember(declaring, field, field.asType(), resource, true);
+            }
+
+            for (ExecutableElement method : ElementFilter.methodsIn(declaring.getEnclosedElements()))
+            {
+                AnnotationMirror resource = findAnnotation(method, RESOURCE);
+                if (resource == null || method.getParameters().size() != 1)
+                {
+                    continue;
+                }
+
+                if (method.getModifiers().contains(Modifier.STATIC))
+                {
+                    problems.add("the method is static: " + method);
+                }
+
+                addMember(declaring, method, method.getParameters().get(0).asType(), resource, false);
+            }
+        }
+
+        private void addMember(TypeElement declaring, Element element, TypeMirror memberType, AnnotationMirror resource, boolean field)
+        {
+            TypeMirror erasure = processingEnv.getTypeUtils().erasure(memberType);
+            if (erasure.getKind() != TypeKind.DECLARED || !isAccessible(asTypeElement(erasure), pkg))
+            {
+                problems.add("the type is not supported: " + element);
+                return;
+            }
+
+            String name = getResourceName(element, resource, memberType);
+            if (name == null)
+            {
+                return;
+            }
+
+            boolean handle;
+            if (element.getModifiers().contains(Modifier.PRIVATE))
+            {
+                handle = true;
+            }
+            else if (element.getModifiers().contains(Modifier.PUBLIC))
+            {
+                handle = !isAccessible(declaring, pkg);
+            }
+            else
+            {
+                handle = !getPackage(declaring).equals(pkg) || !isAccessible(declaring, pkg);
+            }
+
+            members.add(new Member(name, asTypeElement(erasure).getQualifiedName().toString(), element.getSimpleName().toString(), field, declaring, handle));
+        }
+
+        private String getResourceName(Element element, AnnotationMirror resource, TypeMirror memberType)
+        {
+            String name = "";
+            TypeMirror resourceType = null;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : processingEnv.getElementUtils().getElementValuesWithDefaults(resource).entrySet())
+            {
+                String key = entry.getKey().getSimpleName().toString();
+                if (key.equals("name"))
+                {
+                    name = (String) entry.getValue().getValue();
+                }
+                else if (key.equals("type"))
+                {
+                    resourceType = (TypeMirror) entry.getValue().getValue();
+                }
+            }
+
+            if (!name.isEmpty())
+            {
+                return name;
+            }
+
+            TypeMirror named = processingEnv.getTypeUtils().erasure(memberType);
+            if (resourceType != null && !isType(resourceType, Object.class.getName()))
+            {
+                named = resourceType;
+            }
+            else if (isType(named, SERVICE_REF))
+            {
+                List<? extends TypeMirror> arguments = ((DeclaredType) memberType).getTypeArguments();
+                named = arguments.isEmpty() ? null : arguments.get(0);
+            }
+
+            if (named == null || named.getKind() != TypeKind.DECLARED)
+            {
+                problems.add("the resource name can not be determined: " + element);
+                return null;
+            }
+
+            return processingEnv.getElementUtils().getBinaryName(asTypeElement(named)).toString();
+        }
+
+        private void addCallbacks(String annotation)
+        {
+            List<String> methods = new ArrayList<>();
+            for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type)))
+            {
+                if (method.getModifiers().contains(Modifier.PUBLIC) && findAnnotation(method, annotation) != null)
+                {
+                    if (method.getModifiers().contains(Modifier.STATIC) || !method.getParameters().isEmpty())
+                    {
+                        problems.add("the callback is static or has parameters: " + method);
+                    }
+
+                    methods.add(method.getSimpleName().toString());
+                }
+            }
+
+            if (!methods.isEmpty())
+            {
+                callbacks.put(annotation, methods);
+            }
+        }
+
+        /**
+         * Whether instances are created with the public no-arg constructor, rather than a resource constructor.
+         */
+        private boolean hasPublicConstructor()
+        {
+            boolean found = false;
+            for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+            {
+                if (findAnnotation(constructor, RESOURCE_CONSTRUCTOR) != null)
+                {
+                    return false;
+                }
+
+                found |= constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC);
+            }
+
+            return found;
+        }
+
+        private void write() throws IOException
+        {
+            String typeName = type.getQualifiedName().toString();
+            String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+            String simpleName = binaryName.substring(pkg.isEmpty() ? 0 : pkg.length() + 1).replace('$', '_') + SUFFIX;
+
+            StringBuilder out = new StringBuilder();
+            if (!pkg.isEmpty())
+            {
+                out.append("package ").append(pkg).append(";\n\n");
+            }
+
+            out.append("@javax.annotation.processing.Generated(\"").append(InjectorProcessor.class.getName()).append("\")\n");
+            out.append("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })\n");
+            out.append("public final class ").append(simpleName).append(" implements ").append(INJECTOR).append('<').append(typeName).append(">\n{\n");
+
+            out.append("    private static final java.util.List<").append(INJECTOR).append(".Member> MEMBERS = java.util.List.of(");
+            for (int i = 0; i < members.size(); i++)
+            {
+                Member member = members.get(i);
+                out.append(i == 0 ? "\n" : ",\n");
+                out.append("        new ").append(INJECTOR).append(".Member(").append(literal(member.name)).append(", ").append(member.typeName).append(".class, ")
+                        .append(literal(member.memberName)).append(", ").append(member.field).append(')');
+            }
+            out.append(");\n");
+
+            writeHandles(out);
+
+            out.append("\n    @Override\n    public Class<").append(typeName).append("> getType()\n    {\n");
+            out.append("        return ").append(typeName).append(".class;\n    }\n");
+
+            out.append("\n    @Override\n    public ").append(typeName).append(" newInstance() throws Exception\n    {\n");
+            out.append("        return ").append(hasPublicConstructor() ? "new " + typeName + "()" : "null").append(";\n    }\n");
+
+            out.append("\n    @Override\n    public java.util.List<").append(INJECTOR).append(".Member> getMembers()\n    {\n");
+            out.append("        return MEMBERS;\n    }\n");
+
+            out.append("\n    @Override\n    public void inject(").append(typeName).append(" instance, int index, Object value) throws Exception\n    {\n");
+            out.append("        switch (index)\n        {\n");
+            for (int i = 0; i < members.size(); i++)
+            {
+                Member member = members.get(i);
+                out.append("        case ").append(i).append(":\n");
+                if (member.handle)
+                {
+                    out.append("            invoke(HANDLE_").append(i).append(", instance, value);\n");
+                }
+                else if (member.field)
+                {
+                    out.append("            ").append(receiver(member)).append('.').append(member.memberName).append(" = ").append(value(member)).append(";\n");
+                }
+                else
+                {
+                    out.append("            ").append(receiver(member)).append('.').append(member.memberName).append('(').append(value(member)).append(");\n");
+                }
+                out.append("            break;\n");
+            }
+            out.append("        default:\n            throw new IndexOutOfBoundsException(index);\n        }\n    }\n");
+
+            out.append("\n    @Override\n    public boolean invoke(Class<? extends java.lang.annotation.Annotation> annotation, ").append(typeName).append(" instance) throws Exception\n    {\n");
+            for (Map.Entry<String, List<String>> entry : callbacks.entrySet())
+            {
+                out.append("        if (annotation == ").append(entry.getKey()).append(".class)\n        {\n");
+                for (String method : entry.getValue())
+                {
+                    out.append("            instance.").append(method).append("();\n");
+                }
+                out.append("            return true;\n        }\n\n");
+            }
+            out.append("        return annotation == ").append(POST_CONSTRUCT).append(".class || annotation == ").append(PRE_DESTROY).append(".class;\n    }\n");
+
+            if (members.stream().anyMatch(m -> m.handle))
+            {
+                out.append("\n    private static void invoke(java.lang.invoke.MethodHandle handle, Object instance, Object value) throws Exception\n    {\n");
+                out.append("        try\n        {\n            handle.invoke(instance, value);\n        }\n");
+                out.append("        catch (Exception | Error e)\n        {\n            throw e;\n        }\n");
+                out.append("        catch (Throwable t)\n        {\n            throw new java.lang.reflect.UndeclaredThrowableException(t);\n        }\n    }\n");
+            }
+
+            out.append("}\n");
+
+            String name = pkg.isEmpty() ? simpleName : pkg + '.' + simpleName;
+            try (Writer writer = processingEnv.getFiler().createSourceFile(name, type).openWriter())
+            {
+                writer.write(out.toString());
+            }
+        }
+
+        /**
+         * The instance, cast to the declaring class of a member so that members hidden by a subclass are not used
+         * instead. The cast is left out when it would be redundant.
+         */
+        private String receiver(Member member)
+        {
+            return member.declaring.equals(type) ? "instance" : "((" + member.declaring.getQualifiedName() + ") instance)";
+        }
+
+        private String value(Member member)
+        {
+            return member.typeName.equals(Object.class.getName()) ? "value" : "(" + member.typeName + ") value";
+        }
+
+        /**
+         * Look up the method handles of the members that can't be accessed directly, with private access to their class.
+         */
+        private void writeHandles(StringBuilder out)
+        {
+            StringBuilder init = new StringBuilder();
+            for (int i = 0; i < members.size(); i++)
+            {
+                Member member = members.get(i);
+                if (!member.handle)
+                {
+                    continue;
+                }
+
+                String declaring = isAccessible(member.declaring, pkg)
+                        ? member.declaring.getQualifiedName() + ".class"
+                        : "Class.forName(" + literal(processingEnv.getElementUtils().getBinaryName(member.declaring).toString()) + ", false, " + type.getQualifiedName() + ".class.getClassLoader())";
+
+                out.append("    private static final java.lang.invoke.MethodHandle HANDLE_").append(i).append(";\n");
+                init.append("            HANDLE_").append(i).append(" = java.lang.invoke.MethodHandles.privateLookupIn(").append(declaring).append(", java.lang.invoke.MethodHandles.lookup())");
+                if (member.field)
+                {
+                    init.append(".unreflectSetter(").append(declaring).append(".getDeclaredField(").append(literal(member.memberName)).append("));\n");
+                }
+                else
+                {
+                    init.append(".unreflect(").append(declaring).append(".getDeclaredMethod(").append(literal(member.memberName)).append(", ").append(member.typeName).append(".class));\n");
+                }
+            }
+
+            if (init.length() > 0)
+            {
+                out.append("\n    static\n    {\n        try\n        {\n").append(init).append("        }\n");
+                out.append("        catch (ReflectiveOperationException e)\n        {\n            throw new ExceptionInInitializerError(e);\n        }\n    }\n");
+            }
+        }
+
+        private boolean isType(TypeMirror mirror, String name)
+        {
+            return mirror.getKind() == TypeKind.DECLARED && asTypeElement(mirror).getQualifiedName().contentEquals(name);
+        }
+
+        private TypeElement asTypeElement(TypeMirror mirror)
+        {
+            return (TypeElement) processingEnv.getTypeUtils().asElement(mirror);
+        }
+    }
+
+    private static String literal(String value)
+    {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray())
+        {
+            if (c == '"' || c == '\\')
+            {
+                literal.append('\\').append(c);
+            }
+            else if (c < ' ' || c > '~')
+            {
+                literal.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                literal.append(c);
+            }
+        }
+
+        return literal.append('"').toString();
+    }
+
+    /**
+     * A resource field or method of the class.
+     */
+    private record Member(String name, String typeName, String memberName, boolean field, TypeElement declaring, boolean handle)
+    {
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+
+import com.lbayer.appup.registry.AppupInitialContextFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the reflective injector with the method handle injector, by creating an instance, injecting its
+ * resources and invoking its {@link PostConstruct} method, the same way a contribution instance is created.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InjectionBenchmark
+{
+    @Setup
+    public void setUp() throws Exception
+    {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, AppupInitialContextFactory.class.getName());
+
+        InitialContext context = new InitialContext();
+        context.bind(FirstService.class.getName(), new FirstService());
+        context.bind(SecondService.class.getName(), new SecondService());
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dappup.injector=reflection")
+    public Object reflection() throws Exception
+    {
+        return create();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dappup.injector=methodHandles")
+    public Object methodHandles() throws Exception
+    {
+        return create();
+    }
+
+    private static Object create() throws Exception
+    {
+        Injected instance = InjectionElf.newInstance(Injected.class);
+        InjectionElf.injectResources(instance);
+        InjectionElf.invokeMethodsWithAnnotation(PostConstruct.class, instance);
+        return instance;
+    }
+
+    public static class FirstService
+    {
+    }
+
+    public static class SecondService
+    {
+    }
+
+    public static class Injected
+    {
+        @Resource
+        private FirstService first;
+
+        private SecondService second;
+
+        private boolean started;
+
+        @Resource
+        public void setSecond(SecondService second)
+        {
+            this.second = second;
+        }
+
+        @PostConstruct
+        public void start()
+        {
+            started = first != null && second != null;
+        }
+    }
+}
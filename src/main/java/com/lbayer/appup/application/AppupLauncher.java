@@ -21,14 +21,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 
+import com.lbayer.appup.internal.InjectionElf;
 import com.lbayer.appup.registry.AppupInitialContextFactory;
+import com.lbayer.appup.registry.AppupServices;
 import com.lbayer.appup.registry.ContribRegistry;
 import com.lbayer.appup.registry.IContribRegistry;
 import org.slf4j.LoggerFactory;
@@ -111,6 +118,13 @@ public class AppupLauncher implements IAppupRuntime
 
             importProperties();
 
+            if (Boolean.getBoolean(IAppupRuntime.PROP_SERVICE_INDEX_CACHE))
+            {
+                AppupServices.setServiceIndexCache(new File(confDir, "service.cache"));
+            }
+
+            InjectionElf.setParallelInjection(Boolean.getBoolean(IAppupRuntime.PROP_PARALLEL_INJECTION));
+
             if (System.getProperty("java.version").startsWith("1."))
             {
                 URL[] urls = ((URLClassLoader) getClass().getClassLoader()).getURLs();
@@ -127,13 +141,21 @@ public class AppupLauncher implements IAppupRuntime
             }
 
             ContribRegistry contribRegistry = new ContribRegistry(getClass().getClassLoader());
+            contribRegistry.setLazy(Boolean.getBoolean(IAppupRuntime.PROP_LAZY_CONTRIBS));
+            if (Boolean.getBoolean(IAppupRuntime.PROP_CONTRIB_CACHE))
+            {
+                contribRegistry.setCacheFile(new File(confDir, "contrib.cache"));
+            }
             contribRegistry.initializeFromClassLoader();
+            prewarmContribs(contribRegistry);
 
             InitialContext ctxt = new InitialContext();
             ctxt.bind(IContribRegistry.class.getName(), contribRegistry);
             ctxt.bind(IAppupRuntime.class.getName(), this);
 
             String[] classnames = getInterpolatedSystemProperty(IAppupRuntime.PROP_STARTCLASSES).split(",");
+            warmUpServices(classnames);
+
             AppupLifecycle lifecycle = new AppupLifecycle(getClass().getClassLoader(), Arrays.asList(classnames));
             lifecycle.setErrorHandler((name, t) -> {
                 logError("Error in " + name, t);
@@ -146,6 +168,7 @@ public class AppupLauncher implements IAppupRuntime
             }
 
             lifecycle.stop();
+            contribRegistry.close();
 
             return exitCode.get();
         }
@@ -183,6 +206,65 @@ public class AppupLauncher implements IAppupRuntime
         }
     }
 
+    private static void prewarmContribs(ContribRegistry contribRegistry)
+    {
+        String points = getInterpolatedSystemProperty(IAppupRuntime.PROP_PREWARM_CONTRIBS);
+        if (!points.isEmpty())
+        {
+            int threads = Integer.getInteger(IAppupRuntime.PROP_PREWARM_THREADS, Runtime.getRuntime().availableProcessors());
+            contribRegistry.prewarmClasses(Arrays.asList(points.split(",")), threads);
+        }
+    }
+
+    private void warmUpServices(String[] classnames)
+    {
+        if (!Boolean.getBoolean(IAppupRuntime.PROP_WARMUP_SERVICES))
+        {
+            return;
+        }
+
+        if (!AppupInitialContextFactory.class.getName().equals(System.getProperty(Context.INITIAL_CONTEXT_FACTORY)))
+        {
+            LoggerFactory.getLogger(AppupLauncher.class).warn("Services can only be warmed up with the appup initial context factory");
+            return;
+        }
+
+        List<Class<?>> roots = new ArrayList<>();
+        for (String lifecycleName : classnames)
+        {
+            String[] props = lifecycleName.split(";", 2);
+            if (props[0].isEmpty() || (props.length > 1 && !NativeCodeManager.NativeCodeRestriction.matches(props[1])))
+            {
+                continue;
+            }
+
+            try
+            {
+                roots.add(getClass().getClassLoader().loadClass(props[0]));
+            }
+            catch (ClassNotFoundException e)
+            {
+                // reported when the lifecycle is started
+            }
+        }
+
+        int threads = Integer.getInteger(IAppupRuntime.PROP_WARMUP_THREADS, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try
+        {
+            AppupServices.warmUp(roots, executor);
+        }
+        catch (NamingException e)
+        {
+            // the lifecycles will hit the same error when they are started
+            logError("Error warming up services", e);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
     private void installHooks()
     {
         Runtime.getRuntime().addShutdownHook(new Thread()
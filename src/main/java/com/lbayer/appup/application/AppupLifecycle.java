@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import static com.lbayer.appup.internal.InjectionElf.injectResources;
 import static com.lbayer.appup.internal.InjectionElf.invokeMethodsWithAnnotation;
+import static com.lbayer.appup.internal.InjectionElf.newInstance;
 
 public class AppupLifecycle
 {
@@ -88,7 +89,7 @@ public class AppupLifecycle
                 try
                 {
                     Class<?> clazz = classLoader.loadClass(className);
-                    Object instance = clazz.newInstance();
+                    Object instance = newInstance(clazz);
                     lifecycleInstances.add(instance);
                     LOGGER.debug("Added lifecycle: {}", lifecycleName);
                 }
@@ -20,6 +20,16 @@ public interface IAppupRuntime
     String PROP_CONFDIR = "appup.confDir";
     String PROP_LIBDIR = "appup.libDir";
     String PROP_STARTCLASSES = "appup.startClasses";
+    String PROP_CONTRIB_CACHE = "appup.contribCache";
+    String PROP_LAZY_CONTRIBS = "appup.lazyContribs";
+    String PROP_PREWARM_CONTRIBS = "appup.prewarmContribs";
+    String PROP_PREWARM_THREADS = "appup.prewarmThreads";
+    String PROP_SERVICE_INDEX_CACHE = "appup.serviceIndexCache";
+    String PROP_WARMUP_SERVICES = "appup.warmUpServices";
+    String PROP_WARMUP_THREADS = "appup.warmUpThreads";
+    String PROP_INJECTOR = "appup.injector";
+    String PROP_PARALLEL_INJECTION = "appup.parallelInjection";
+    String PROP_LOOKUP_THREADS = "appup.lookupThreads";
 
     /**
      * Request a graceful exit of the application, and set the exit code to return.
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.internal;
+
+import java.lang.annotation.Annotation;
+import java.util.List;
+
+/**
+ * An injector for a single class, generated at compile time by the appup-processor annotation processor. For a class
+ * <code>com.example.Outer.Service</code> the injector is <code>com.example.Outer_Service_AppupInjector</code>.
+ * {@link InjectionElf} uses it instead of reflection when it exists.
+ *
+ * @param <T> The class the injector is for
+ */
+public interface IInjector<T>
+{
+    /** The suffix of the generated injector class names */
+    String SUFFIX = "_AppupInjector";
+
+    Class<T> getType();
+
+    /**
+     * Create an instance with the public no-arg constructor.
+     *
+     * @return The new instance, or <code>null</code> if there is no such constructor
+     */
+    T newInstance() throws Exception;
+
+    /**
+     * The resource fields and methods, in injection order.
+     */
+    List<Member> getMembers();
+
+    /**
+     * Inject a resource value.
+     *
+     * @param instance The instance to inject into
+     * @param index The index of the member in {@link #getMembers()}
+     * @param value The value, which is of the type of the member
+     */
+    void inject(T instance, int index, Object value) throws Exception;
+
+    /**
+     * Invoke the public methods that have the given annotation.
+     *
+     * @return <code>false</code> if the injector does not know about the annotation
+     */
+    boolean invoke(Class<? extends Annotation> annotation, T instance) throws Exception;
+
+    /**
+     * A resource field or single argument method.
+     *
+     * @param name The resource name
+     * @param type The type of the field or method parameter
+     * @param memberName The field or method name
+     * @param field Whether the member is a field
+     */
+    record Member(String name, Class<?> type, String memberName, boolean field)
+    {
+    }
+}
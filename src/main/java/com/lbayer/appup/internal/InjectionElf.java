@@ -16,14 +16,24 @@
 package com.lbayer.appup.internal;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Resource;
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
+import com.lbayer.appup.registry.AppupInitialContextFactory;
+import com.lbayer.appup.registry.AppupServices;
+import com.lbayer.appup.registry.ResourceConstructor;
+import com.lbayer.appup.registry.ServiceRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,20 +44,62 @@ public final class InjectionElf
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(InjectionElf.class);
 
+    private static volatile boolean parallelInjection;
+
     private InjectionElf()
     {
 
     }
 
+    /**
+     * When enabled, {@link #injectResources(Object)} looks up all the resources of an instance before injecting any of
+     * them, and the services that are not bound yet are created concurrently. {@link #newInstance(Class)} does the same
+     * for the parameters of a {@link ResourceConstructor}. Only applies when the appup context is the initial context.
+     */
+    public static void setParallelInjection(boolean parallel)
+    {
+        parallelInjection = parallel;
+    }
+
     public static void invokeMethodsWithAnnotation(Class<? extends Annotation> annotation, Object object) throws InvocationTargetException, IllegalAccessException
     {
-        for (Method m : object.getClass().getMethods())
+        InjectionPlan.get(object.getClass()).invokeMethods(annotation, object);
+    }
+
+    /**
+     * Create an instance of a class with its {@link ResourceConstructor}, whose parameters are looked up first, or with
+     * its public no-arg constructor.
+     * @param clazz The class to instantiate
+     * @return The new instance, without any field or method resources injected
+     * @throws ReflectiveOperationException If the class has no such constructor, or the constructor fails
+     */
+    public static <T> T newInstance(Class<T> clazz) throws ReflectiveOperationException
+    {
+        InjectionPlan plan = InjectionPlan.get(clazz);
+
+        List<InjectionPlan.ResourceMember> parameters = plan.getParameters();
+        if (parallelInjection && parameters.size() > 1 && isAppupContext())
         {
-            if (m.getAnnotation(annotation) != null)
+            return clazz.cast(plan.newInstance(resolveAll(clazz, parameters, "constructor ")));
+        }
+
+        Object[] arguments = new Object[parameters.size()];
+        for (int i = 0; i < arguments.length; i++)
+        {
+            InjectionPlan.ResourceMember parameter = parameters.get(i);
+
+            LOGGER.debug("Resolving constructor resource: {}({})", clazz.getName(), parameter.name());
+            try
+            {
+                arguments[i] = resolve(parameter.name(), parameter.type());
+            }
+            catch (NamingException e)
             {
-                m.invoke(object);
+                throw new IllegalStateException(String.format("Injection resource missing for constructor: %s(%s)", clazz.getName(), parameter.name()), e);
             }
         }
+
+        return clazz.cast(plan.newInstance(arguments));
     }
 
     /**
@@ -61,96 +113,170 @@ public final class InjectionElf
     {
         LOGGER.trace("Injecting resources into instance: {}", instance);
 
-        injectResourcesForClass(instance, instance.getClass());
-    }
-
-    private static void injectResourcesForClass(Object instance, Class<?> clazz) throws NamingException, IllegalAccessException, InvocationTargetException
-    {
-        // inject into the super class first
-        Class<?> superclass = clazz.getSuperclass();
-        if (superclass != null)
-        {
-            injectResourcesForClass(instance, superclass);
-        }
-        else
+        List<InjectionPlan.ResourceMember> members = InjectionPlan.get(instance.getClass()).getResources();
+        if (parallelInjection && members.size() > 1 && isAppupContext())
         {
+            injectResourcesParallel(instance, members);
             return;
         }
 
-        for (Field field : clazz.getDeclaredFields())
+        for (InjectionPlan.ResourceMember member : members)
         {
-            Resource resource = field.getAnnotation(Resource.class);
-            if (resource != null)
+            if (member.field())
+            {
+                LOGGER.debug("Injecting resource in field: {}#{}({})", instance.getClass().getName(), member.memberName(), member.name());
+            }
+            else
             {
-                String resourceName = getResourceName(resource, field.getType());
+                LOGGER.debug("Injecting resource: {}#{}({})", instance.getClass().getName(), member.memberName(), member.name());
+            }
 
-                LOGGER.debug("Injecting resource in field: {}#{}({})", instance.getClass().getName(), field.getName(), resourceName);
+            Object value;
+            try
+            {
+                value = resolve(member.name(), member.type());
+            }
+            catch (NamingException e)
+            {
+                String message = member.field() ? "Injection resource missing for field: %s#%s(%s)" : "Injection resource missing for: %s#%s(%s)";
+                throw new IllegalStateException(String.format(message, instance.getClass().getName(), member.memberName(), member.name()), e);
+            }
 
-                Object value;
-                try
-                {
-                    value = InitialContext.doLookup(resourceName);
-                }
-                catch (NamingException e)
-                {
-                    throw new IllegalStateException(String.format("Injection resource missing for field: %s#%s(%s)", instance.getClass().getName(), field.getName(), resourceName), e);
-                }
+            member.inject(instance, value);
+        }
+    }
 
-                if (!field.isAccessible())
-                {
-                    field.setAccessible(true);
-                }
+    /**
+     * Look up all the resources of an instance together, then inject them in order. Nothing is injected if any of the
+     * resources is missing.
+     */
+    private static void injectResourcesParallel(Object instance, List<InjectionPlan.ResourceMember> members) throws IllegalAccessException, InvocationTargetException
+    {
+        Object[] values = resolveAll(instance.getClass(), members, null);
+        for (int i = 0; i < values.length; i++)
+        {
+            InjectionPlan.ResourceMember member = members.get(i);
 
-                field.set(instance, value);
-            }
+            LOGGER.debug("Injecting resource: {}#{}({})", instance.getClass().getName(), member.memberName(), member.name());
+            member.inject(instance, values[i]);
         }
+    }
 
-        for (Method method : clazz.getDeclaredMethods())
+    /**
+     * Get the values of resources, looking up the services that are not bound yet concurrently. All the missing
+     * resources are reported in one exception.
+     *
+     * @param kind Describes every member in the error message, or <code>null</code> to tell fields and methods apart
+     * @return The value of each member, in order
+     */
+    private static Object[] resolveAll(Class<?> clazz, List<InjectionPlan.ResourceMember> members, String kind)
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (InjectionPlan.ResourceMember member : members)
         {
-            Class<?>[] types = method.getParameterTypes();
-            Resource resource = method.getAnnotation(Resource.class);
-            if (resource != null && types.length == 1)
+            if (!member.isRef())
             {
-                String resourceName = getResourceName(resource, types[0]);
-
-                LOGGER.debug("Injecting resource: {}#{}({})", instance.getClass().getName(), method.getName(), resourceName);
+                names.add(member.name());
+            }
+        }
 
-                Object value;
-                try
-                {
-                    value = InitialContext.doLookup(resourceName);
-                }
-                catch (NamingException e)
+        Map<String, NamingException> errors = new LinkedHashMap<>();
+        Map<String, Object> values = AppupServices.lookupAll(names, errors);
+        if (!errors.isEmpty())
+        {
+            StringBuilder message = new StringBuilder("Injection resources missing for: ").append(clazz.getName());
+            for (InjectionPlan.ResourceMember member : members)
+            {
+                NamingException error = errors.get(member.name());
+                if (error != null)
                 {
-                    throw new IllegalStateException(String.format("Injection resource missing for: %s#%s(%s)", instance.getClass().getName(), method.getName(), resourceName), e);
+                    String description = kind != null ? kind : member.field() ? "field " : "";
+                    message.append(String.format("%n    %s%s(%s): %s", description, member.memberName(), member.name(), error));
                 }
+            }
 
-                if (!method.isAccessible())
-                {
-                    method.setAccessible(true);
-                }
+            IllegalStateException exception = new IllegalStateException(message.toString(), errors.values().iterator().next());
+            errors.values().stream().skip(1).forEach(exception::addSuppressed);
+            throw exception;
+        }
 
-                method.invoke(instance, value);
-            }
+        Object[] result = new Object[members.size()];
+        for (int i = 0; i < result.length; i++)
+        {
+            InjectionPlan.ResourceMember member = members.get(i);
+            result[i] = member.isRef() ? AppupServices.ref(member.name()) : values.get(member.name());
         }
+
+        return result;
     }
 
-    private static String getResourceName(Resource resource, Class<?> parameterType)
+    /**
+     * Get the names of the resources that {@link #injectResources(Object)} would look up for an instance of the given class,
+     * and that {@link #newInstance(Class)} would pass to its constructor.
+     * {@link ServiceRef} resources are left out, since they are not looked up until they are used.
+     * @param clazz The class to scan
+     * @return The resource names, constructor resources and then super class resources first
+     */
+    public static List<String> getResourceNames(Class<?> clazz)
     {
-        String resourceName = resource.name();
-        if (resourceName.isEmpty())
+        InjectionPlan plan = InjectionPlan.get(clazz);
+
+        List<String> names = new ArrayList<>();
+        for (InjectionPlan.ResourceMember member : plan.getParameters())
         {
-            Class<?> type = resource.type();
-            if (type != Object.class)
+            if (!member.isRef())
             {
-                resourceName = type.getName();
+                names.add(member.name());
             }
-            else
+        }
+
+        for (InjectionPlan.ResourceMember member : plan.getResources())
+        {
+            if (!member.isRef())
+            {
+                names.add(member.name());
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Get the value to inject for a resource, which is a reference for {@link ServiceRef} members and the service itself otherwise.
+     *
+     * @throws ConfigurationException For a {@link ServiceRef} member when the appup context is not the initial context,
+     *         since references are only kept up to date by the appup context
+     */
+    private static Object resolve(String name, Class<?> type) throws NamingException
+    {
+        if (type == ServiceRef.class)
+        {
+            if (!isAppupContext())
             {
-                resourceName = parameterType.getName();
+                throw new ConfigurationException("ServiceRef resources require the appup initial context factory: " + name);
             }
+
+            return AppupServices.ref(name);
         }
 
-        return resourceName;
+        return lookup(name);
+    }
+
+    /**
+     * Look up a resource, directly from the appup context when it is the configured initial context.
+     */
+    private static Object lookup(String name) throws NamingException
+    {
+        if (isAppupContext())
+        {
+            return AppupServices.lookup(name);
+        }
+
+        return InitialContext.doLookup(name);
+    }
+
+    private static boolean isAppupContext()
+    {
+        return AppupInitialContextFactory.class.getName().equals(System.getProperty(Context.INITIAL_CONTEXT_FACTORY));
     }
 }
@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.internal;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Resource;
+
+import com.lbayer.appup.application.IAppupRuntime;
+import com.lbayer.appup.registry.ResourceConstructor;
+import com.lbayer.appup.registry.ServiceRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What {@link InjectionElf} does with instances of a class: the resources to inject and the methods that have a
+ * given annotation. A plan is built once per class, so injecting into an instance only has to resolve the values.
+ *
+ * When the <code>appup.injector</code> system property is <code>methodHandles</code>, members are invoked through
+ * {@link MethodHandle}s instead of reflection. Classes that have an {@link IInjector} generated at compile time use
+ * that instead of either.
+ */
+final class InjectionPlan
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(InjectionPlan.class);
+
+    static final boolean METHOD_HANDLES = "methodHandles".equals(System.getProperty(IAppupRuntime.PROP_INJECTOR));
+
+    private static final MethodType INJECTOR_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CALLBACK_TYPE = MethodType.methodType(void.class, Object.class);
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    private static final ClassValue<InjectionPlan> PLANS = new ClassValue<>()
+    {
+        @Override
+        protected InjectionPlan computeValue(Class<?> type)
+        {
+            return new InjectionPlan(type);
+        }
+    };
+
+    private final Class<?> type;
+
+    /** The injector generated for the class, if any */
+    private final IInjector<Object> generated;
+
+    /** The resource fields and methods, super class members first */
+    private final List<ResourceMember> resources;
+
+    /** The {@link ResourceConstructor}, and the resources to pass to it */
+    private final Constructor<?> resourceConstructor;
+    private final MethodHandle resourceConstructorHandle;
+    private final List<ResourceMember> parameters;
+
+    /** The public methods with each annotation, found when first requested */
+    private final ConcurrentMap<Class<? extends Annotation>, Callbacks> annotated = new ConcurrentHashMap<>();
+
+    /** The no-arg constructor, found when first requested */
+    private volatile Constructor<?> constructor;
+    private volatile MethodHandle constructorHandle;
+
+    private InjectionPlan(Class<?> type)
+    {
+        this.type = type;
+
+        generated = findGenerated(type);
+
+        List<ResourceMember> members = new ArrayList<>();
+        if (generated != null)
+        {
+            addResources(generated, members);
+        }
+        else
+        {
+            addResources(type, members);
+        }
+
+        resources = List.copyOf(members);
+
+        resourceConstructor = findResourceConstructor(type);
+        if (resourceConstructor != null)
+        {
+            parameters = getParameters(resourceConstructor);
+            resourceConstructorHandle = METHOD_HANDLES ? unreflectSpreader(resourceConstructor) : null;
+        }
+        else
+        {
+            parameters = List.of();
+            resourceConstructorHandle = null;
+        }
+    }
+
+    private static Constructor<?> findResourceConstructor(Class<?> type)
+    {
+        Constructor<?> found = null;
+        for (Constructor<?> c : type.getConstructors())
+        {
+            if (c.isAnnotationPresent(ResourceConstructor.class))
+            {
+                if (found != null)
+                {
+                    throw new IllegalStateException("Multiple resource constructors: " + type.getName());
+                }
+
+                found = c;
+            }
+        }
+
+        return found;
+    }
+
+    private static List<ResourceMember> getParameters(Constructor<?> constructor)
+    {
+        String[] names = constructor.getAnnotation(ResourceConstructor.class).names();
+        Class<?>[] types = constructor.getParameterTypes();
+        Type[] genericTypes = constructor.getGenericParameterTypes();
+        Parameter[] declared = constructor.getParameters();
+
+        List<ResourceMember> parameters = new ArrayList<>();
+        for (int i = 0; i < types.length; i++)
+        {
+            String name = i < names.length ? names[i] : "";
+            Type genericType = genericTypes.length == types.length ? genericTypes[i] : types[i];
+            parameters.add(new ResourceMember(getResourceName(name, Object.class, types[i], genericType), types[i], declared[i].getName(), false, null));
+        }
+
+        return List.copyOf(parameters);
+    }
+
+    private static MethodHandle unreflectSpreader(Constructor<?> constructor)
+    {
+        try
+        {
+            MethodHandle handle = MethodHandles.publicLookup().unreflectConstructor(constructor);
+            return handle.asSpreader(Object[].class, constructor.getParameterCount()).asType(MethodType.methodType(Object.class, Object[].class));
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException("Unable to access constructor: " + constructor, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static IInjector<Object> findGenerated(Class<?> type)
+    {
+        if (type.getClassLoader() == null)
+        {
+            return null;
+        }
+
+        String name = type.getName();
+        int separator = name.lastIndexOf('.') + 1;
+        String injectorName = name.substring(0, separator) + name.substring(separator).replace('$', '_') + IInjector.SUFFIX;
+        try
+        {
+            Class<?> injectorClass = Class.forName(injectorName, true, type.getClassLoader());
+            IInjector<Object> injector = (IInjector<Object>) injectorClass.getConstructor().newInstance();
+            return injector.getType() == type ? injector : null;
+        }
+        catch (ClassNotFoundException e)
+        {
+            return null;
+        }
+        catch (ReflectiveOperationException | ClassCastException | LinkageError e)
+        {
+            LOGGER.warn("Ignoring unusable generated injector: {}", injectorName, e);
+            return null;
+        }
+    }
+
+    private static void addResources(IInjector<Object> injector, List<ResourceMember> members)
+    {
+        List<IInjector.Member> generatedMembers = injector.getMembers();
+        for (int i = 0; i < generatedMembers.size(); i++)
+        {
+            IInjector.Member member = generatedMembers.get(i);
+
+            int index = i;
+            members.add(new ResourceMember(member.name(), member.type(), member.memberName(), member.field(), (instance, value) -> {
+                if (value != null && !member.type().isInstance(value))
+                {
+                    throw new IllegalArgumentException("Can not inject " + value + " into " + member.memberName());
+                }
+
+                try
+                {
+                    injector.inject(instance, index, value);
+                }
+                catch (Exception e)
+                {
+                    throw new InvocationTargetException(e);
+                }
+            }));
+        }
+    }
+
+    static InjectionPlan get(Class<?> type)
+    {
+        return PLANS.get(type);
+    }
+
+    List<ResourceMember> getResources()
+    {
+        return resources;
+    }
+
+    /**
+     * The resources passed to the {@link ResourceConstructor}, or an empty list if the class doesn't have one.
+     */
+    List<ResourceMember> getParameters()
+    {
+        return parameters;
+    }
+
+    /**
+     * Invoke the public methods of the class, including inherited ones, that have the given annotation.
+     */
+    void invokeMethods(Class<? extends Annotation> annotation, Object instance) throws InvocationTargetException, IllegalAccessException
+    {
+        if (generated != null)
+        {
+            try
+            {
+                if (generated.invoke(annotation, instance))
+                {
+                    return;
+                }
+            }
+            catch (Exception e)
+            {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        Callbacks callbacks = annotated.computeIfAbsent(annotation, this::findCallbacks);
+        if (callbacks.handles != null)
+        {
+            for (MethodHandle handle : callbacks.handles)
+            {
+                try
+                {
+                    handle.invokeExact(instance);
+                }
+                catch (Throwable t)
+                {
+                    throw new InvocationTargetException(t);
+                }
+            }
+        }
+        else
+        {
+            for (Method m : callbacks.methods)
+            {
+                m.invoke(instance);
+            }
+        }
+    }
+
+    private Callbacks findCallbacks(Class<? extends Annotation> annotation)
+    {
+        List<Method> methods = new ArrayList<>();
+        for (Method m : type.getMethods())
+        {
+            if (m.getAnnotation(annotation) != null)
+            {
+                methods.add(m);
+            }
+        }
+
+        List<MethodHandle> handles = null;
+        if (METHOD_HANDLES)
+        {
+            handles = new ArrayList<>();
+            for (Method m : methods)
+            {
+                handles.add(unreflect(m, CALLBACK_TYPE));
+            }
+        }
+
+        return new Callbacks(List.copyOf(methods), handles);
+    }
+
+    /**
+     * Create an instance with the {@link ResourceConstructor}, or the public no-arg constructor if there is none.
+     *
+     * @param arguments The resolved {@link #getParameters()}
+     */
+    Object newInstance(Object[] arguments) throws ReflectiveOperationException
+    {
+        if (resourceConstructor != null)
+        {
+            if (resourceConstructorHandle != null)
+            {
+                try
+                {
+                    return resourceConstructorHandle.invokeExact(arguments);
+                }
+                catch (Throwable t)
+                {
+                    throw new InvocationTargetException(t);
+                }
+            }
+
+            return resourceConstructor.newInstance(arguments);
+        }
+
+        if (generated != null)
+        {
+            Object instance;
+            try
+            {
+                instance = generated.newInstance();
+            }
+            catch (Exception e)
+            {
+                throw new InvocationTargetException(e);
+            }
+
+            if (instance != null)
+            {
+                return instance;
+            }
+        }
+
+        if (constructor == null)
+        {
+            Constructor<?> c = type.getConstructor();
+            if (METHOD_HANDLES)
+            {
+                constructorHandle = MethodHandles.publicLookup().unreflectConstructor(c).asType(CONSTRUCTOR_TYPE);
+            }
+
+            constructor = c;
+        }
+
+        MethodHandle handle = constructorHandle;
+        if (handle != null)
+        {
+            try
+            {
+                return handle.invokeExact();
+            }
+            catch (Throwable t)
+            {
+                throw new InvocationTargetException(t);
+            }
+        }
+
+        return constructor.newInstance();
+    }
+
+    /**
+     * Give the handle of a static member an instance parameter that is ignored, so it can be invoked like the others.
+     */
+    private static MethodHandle withReceiver(MethodHandle handle, boolean isStatic)
+    {
+        return isStatic ? MethodHandles.dropArguments(handle, 0, Object.class) : handle;
+    }
+
+    private static MethodHandle unreflect(Method method, MethodType type)
+    {
+        try
+        {
+            return withReceiver(MethodHandles.lookup().unreflect(method), Modifier.isStatic(method.getModifiers())).asType(type);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException("Unable to access method: " + method, e);
+        }
+    }
+
+    private static void addResources(Class<?> clazz, List<ResourceMember> members)
+    {
+        // inject into the super class first
+        Class<?> superclass = clazz.getSuperclass();
+        if (superclass != null)
+        {
+            addResources(superclass, members);
+        }
+        else
+        {
+            return;
+        }
+
+        for (Field field : clazz.getDeclaredFields())
+        {
+            Resource resource = field.getAnnotation(Resource.class);
+            if (resource != null)
+            {
+                field.setAccessible(true);
+
+                Setter setter = field::set;
+                if (METHOD_HANDLES)
+                {
+                    try
+                    {
+                        MethodHandle handle = MethodHandles.lookup().unreflectSetter(field);
+                        setter = handleSetter(withReceiver(handle, Modifier.isStatic(field.getModifiers())).asType(INJECTOR_TYPE), field.getName());
+                    }
+                    catch (IllegalAccessException e)
+                    {
+                        throw new IllegalStateException("Unable to access field: " + field, e);
+                    }
+                }
+
+                members.add(new ResourceMember(getResourceName(resource.name(), resource.type(), field.getType(), field.getGenericType()), field.getType(), field.getName(), true, setter));
+            }
+        }
+
+        for (Method method : clazz.getDeclaredMethods())
+        {
+            Class<?>[] types = method.getParameterTypes();
+            Resource resource = method.getAnnotation(Resource.class);
+            if (resource != null && types.length == 1)
+            {
+                method.setAccessible(true);
+
+                Setter setter = METHOD_HANDLES ? handleSetter(unreflect(method, INJECTOR_TYPE), method.getName()) : (instance, value) -> method.invoke(instance, value);
+                members.add(new ResourceMember(getResourceName(resource.name(), resource.type(), types[0], method.getGenericParameterTypes()[0]), types[0], method.getName(), false, setter));
+            }
+        }
+    }
+
+    private static Setter handleSetter(MethodHandle handle, String memberName)
+    {
+        return (instance, value) -> {
+            try
+            {
+                handle.invokeExact(instance, value);
+            }
+            catch (ClassCastException e)
+            {
+                throw new IllegalArgumentException("Can not inject " + value + " into " + memberName, e);
+            }
+            catch (Throwable t)
+            {
+                throw new InvocationTargetException(t);
+            }
+        };
+    }
+
+    private static String getResourceName(String resourceName, Class<?> resourceType, Class<?> parameterType, Type genericType)
+    {
+        if (resourceName.isEmpty())
+        {
+            if (resourceType != Object.class)
+            {
+                resourceName = resourceType.getName();
+            }
+            else if (parameterType == ServiceRef.class)
+            {
+                resourceName = getReferencedType(genericType).getName();
+            }
+            else
+            {
+                resourceName = parameterType.getName();
+            }
+        }
+
+        return resourceName;
+    }
+
+    /**
+     * Get the service type of a {@link ServiceRef}, from its type argument.
+     */
+    private static Class<?> getReferencedType(Type refType)
+    {
+        if (refType instanceof ParameterizedType)
+        {
+            Type argument = ((ParameterizedType) refType).getActualTypeArguments()[0];
+            if (argument instanceof ParameterizedType)
+            {
+                argument = ((ParameterizedType) argument).getRawType();
+            }
+
+            if (argument instanceof Class)
+            {
+                return (Class<?>) argument;
+            }
+        }
+
+        throw new IllegalStateException("Unable to determine the service of reference: " + refType);
+    }
+
+    /**
+     * A field or single argument method that a resource is injected into, or a constructor parameter without a setter.
+     */
+    record ResourceMember(String name, Class<?> type, String memberName, boolean field, Setter setter)
+    {
+        boolean isRef()
+        {
+            return type == ServiceRef.class;
+        }
+
+        void inject(Object instance, Object value) throws IllegalAccessException, InvocationTargetException
+        {
+            setter.set(instance, value);
+        }
+    }
+
+    @FunctionalInterface
+    interface Setter
+    {
+        void set(Object instance, Object value) throws IllegalAccessException, InvocationTargetException;
+    }
+
+    /**
+     * The methods with an annotation, and their handles when method handles are used.
+     */
+    private record Callbacks(List<Method> methods, List<MethodHandle> handles)
+    {
+    }
+}
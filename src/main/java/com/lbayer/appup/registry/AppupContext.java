@@ -15,18 +15,30 @@
  */
 package com.lbayer.appup.registry;
 
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.ServiceLoader;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
@@ -34,6 +46,7 @@ import javax.naming.Binding;
 import javax.naming.CompositeName;
 import javax.naming.ConfigurationException;
 import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
 import javax.naming.Name;
 import javax.naming.NameClassPair;
 import javax.naming.NameNotFoundException;
@@ -45,29 +58,50 @@ import javax.naming.event.NamingEvent;
 import javax.naming.event.NamingListener;
 import javax.naming.event.ObjectChangeListener;
 
+import com.lbayer.appup.application.IAppupRuntime;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static com.lbayer.appup.internal.InjectionElf.injectResources;
 import static com.lbayer.appup.internal.InjectionElf.invokeMethodsWithAnnotation;
+import static com.lbayer.appup.internal.InjectionElf.newInstance;
 
 class AppupContext implements Context, EventContext
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(AppupContext.class);
 
-    private final Map<String, List<AppupContext.Registration>> registrations;
-    private final Map<String, List<ObjectChangeListener>> listeners;
+    /** The most names kept in the negative cache of each class loader, after which the least recently used are dropped */
+    private static final int NOT_FOUND_LIMIT = 1024;
+
+    /** Immutable bindings per name, replaced as a whole on every change so lookups never need a lock */
+    private final ConcurrentMap<String, Bindings> registrations = new ConcurrentHashMap<>();
+    private final NamingEventDispatcher dispatcher = new NamingEventDispatcher(this);
+
+    /** Services that are being created, so that concurrent lookups of the same name wait for a single creation */
+    private final ConcurrentMap<String, ServiceInit> initializing = new ConcurrentHashMap<>();
+
+    /** The service creation each thread is waiting for, used to detect dependency cycles that span threads */
+    private final Map<Thread, ServiceInit> waiting = new HashMap<>();
+
+    /** The references handed out for each name */
+    private final ConcurrentMap<String, ServiceRef<?>> refs = new ConcurrentHashMap<>();
 
-    /** Lock that only allows a single service to be instantiated and initialized at a time */
-    private final ReentrantLock writeLock = new ReentrantLock();
+    /** Names that could not be resolved, so that probing for a missing service does not resolve it again */
+    private final NotFoundCache notFound = new NotFoundCache();
+
+    /** The service index of each class loader, dropped along with the class loader */
+    private final Map<ClassLoader, ServiceIndex> serviceIndexes = Collections.synchronizedMap(new WeakHashMap<>());
+    private volatile File serviceIndexCache;
 
     private final ThreadLocal<Set<String>> currentLookups = ThreadLocal.withInitial(LinkedHashSet::new);
 
-    AppupContext()
-    {
-        registrations = new HashMap<>();
-        listeners = new HashMap<>();
-    }
+    /** The executor set with {@link #setLookupExecutor(Executor)}, which the context does not shut down */
+    private volatile Executor lookupExecutor;
+
+    /** The executor used when none has been set, created on first use and shut down on {@link #close()} */
+    private ExecutorService defaultLookupExecutor;
+    private final Object executorLock = new Object();
 
     @Override
     public void addNamingListener(Name target, int scope, NamingListener l)
@@ -83,31 +117,59 @@ class AppupContext implements Context, EventContext
             throw new UnsupportedOperationException("Unsupported listener type");
         }
 
-        synchronized (listeners)
-        {
-            List<ObjectChangeListener> list = listeners.computeIfAbsent(target, k -> new ArrayList<>());
-
-            list.add((ObjectChangeListener) l);
-        }
+        dispatcher.addListener(target, scope, (ObjectChangeListener) l);
     }
 
     @Override
     public void removeNamingListener(NamingListener l)
     {
-        synchronized (listeners)
+        dispatcher.removeListener(l);
+    }
+
+    /**
+     * Set the executor that delivers naming events to listeners, and whether consecutive events for the same name
+     * are merged. See {@link NamingEventDispatcher}.
+     */
+    void setEventExecutor(Executor executor, boolean coalesce)
+    {
+        dispatcher.setExecutor(executor);
+        dispatcher.setCoalesce(coalesce);
+    }
+
+    /**
+     * Set the executor that creates services for asynchronous and concurrent lookups.
+     *
+     * @param executor The executor, or <code>null</code> to use the default one
+     */
+    void setLookupExecutor(Executor executor)
+    {
+        lookupExecutor = executor;
+    }
+
+    /**
+     * Get the executor for lookups. Unless one has been set, services are created on a virtual thread per lookup, or
+     * on a fixed pool of <code>appup.lookupThreads</code> platform threads when that property is set. The pool avoids
+     * pinning carrier threads when service creation blocks inside synchronized code.
+     */
+    private Executor getLookupExecutor()
+    {
+        Executor executor = lookupExecutor;
+        if (executor != null)
+        {
+            return executor;
+        }
+
+        synchronized (executorLock)
         {
-            for (List<ObjectChangeListener> entries : listeners.values())
+            if (defaultLookupExecutor == null)
             {
-                Iterator<ObjectChangeListener> iter = entries.iterator();
-                while (iter.hasNext())
-                {
-                    if (iter.next() == l)
-                    {
-                        iter.remove();
-                        return;
-                    }
-                }
+                int threads = Integer.getInteger(IAppupRuntime.PROP_LOOKUP_THREADS, 0);
+                defaultLookupExecutor = threads > 0
+                        ? Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("appup-lookup-", 0).daemon().factory())
+                        : Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("appup-lookup-", 0).factory());
             }
+
+            return defaultLookupExecutor;
         }
     }
 
@@ -120,18 +182,21 @@ class AppupContext implements Context, EventContext
     @Override
     public void close()
     {
-        writeLock.lock();
-        try
+        LOGGER.debug("AppupContext closing");
+        registrations.clear();
+        for (ServiceRef<?> ref : refs.values())
         {
-            synchronized (registrations)
-            {
-                LOGGER.debug("AppupContext closing");
-                registrations.clear();
-            }
+            ref.value = null;
         }
-        finally
+
+        synchronized (executorLock)
         {
-            writeLock.unlock();
+            // lookups that are still running finish, a later lookup starts a new executor
+            if (defaultLookupExecutor != null)
+            {
+                defaultLookupExecutor.shutdown();
+                defaultLookupExecutor = null;
+            }
         }
     }
 
@@ -140,10 +205,9 @@ class AppupContext implements Context, EventContext
     {
         String key;
 
-        int last = name.size() - 1;
-        if (name.getPrefix(last).toString().equals("java:comp/env"))
+        if (name.size() == 3 && name.get(0).equals("java:comp") && name.get(1).equals("env"))
         {
-            key = name.get(last);
+            key = name.get(2);
 
             LOGGER.debug("Name translated for lookup: {} -> {}", name, key);
         }
@@ -157,27 +221,46 @@ class AppupContext implements Context, EventContext
 
     private List<Object> getRegisteredObjects(String name)
     {
-        synchronized (registrations)
-        {
-            List<AppupContext.Registration> result = registrations.get(name);
-            if (result != null && !result.isEmpty())
-            {
-                List<Object> objects = new ArrayList<>(result.size());
-                for (AppupContext.Registration registration : result)
-                {
-                    objects.add(registration.object);
-                }
+        Bindings bindings = registrations.get(name);
+        return bindings == null ? null : bindings.objects;
+    }
 
-                return objects;
-            }
+    /**
+     * Look up a service by its type, which is also the name it is bound with.
+     */
+    <T> T get(Class<T> type) throws NamingException
+    {
+        return type.cast(lookup(type.getName()));
+    }
+
+    boolean isBound(String name)
+    {
+        return registrations.containsKey(name);
+    }
+
+    /**
+     * Create the services that the given roots depend on ahead of time, see {@link ServiceWarmup}.
+     */
+    void warmUp(Collection<Class<?>> roots, Executor executor) throws NamingException
+    {
+        ServiceWarmup warmup = new ServiceWarmup(this, Thread.currentThread().getContextClassLoader());
+        for (Class<?> root : roots)
+        {
+            warmup.addRoot(root);
         }
 
-        return null;
+        warmup.run(executor);
     }
 
     @Override
     public Object lookup(String name) throws NamingException
     {
+        Bindings bindings = registrations.get(name);
+        if (bindings != null)
+        {
+            return bindings.objects.getFirst();
+        }
+
         return lookupMultiple(name).getFirst();
     }
 
@@ -208,6 +291,11 @@ class AppupContext implements Context, EventContext
             return registeredObjects;
         }
 
+        if (notFound.contains(name))
+        {
+            throw new NameNotFoundException(name);
+        }
+
         // we add the current name to the ThreadLocal of currentLookups so that we can detect recursive calls to lookup for the same resource.
         if (!currentLookups.get().add(name))
         {
@@ -218,18 +306,220 @@ class AppupContext implements Context, EventContext
 
         try
         {
-            writeLock.lock();
+            ServiceInit init = new ServiceInit(name);
+            init.owner = Thread.currentThread();
+
+            ServiceInit existing = initializing.putIfAbsent(name, init);
+            if (existing != null)
+            {
+                // another thread is already creating this service
+                return await(existing);
+            }
+
+            return initialize(init);
+        }
+        finally
+        {
+            currentLookups.get().remove(name);
+        }
+    }
+
+    /**
+     * Look up a service without blocking the caller. A service that is already being created is not created again,
+     * the returned future completes when that creation does.
+     */
+    CompletableFuture<Object> lookupAsync(String name)
+    {
+        Bindings bindings = registrations.get(name);
+        if (bindings != null)
+        {
+            return CompletableFuture.completedFuture(bindings.objects.getFirst());
+        }
+
+        if (notFound.contains(name))
+        {
+            return CompletableFuture.failedFuture(new NameNotFoundException(name));
+        }
+
+        return startLookup(name).future.thenApply(List::getFirst);
+    }
+
+    /**
+     * Look up several services at once. The services that are not bound yet are all started on their own threads
+     * before any of them is waited for, so independent services are created concurrently.
+     *
+     * @param names The names to look up
+     * @param errors Receives the exception of each name that could not be looked up
+     * @return The first binding of each name that was looked up
+     */
+    Map<String, Object> lookupAll(Collection<String> names, Map<String, NamingException> errors)
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        Map<String, ServiceInit> pending = new LinkedHashMap<>();
+        for (String name : names)
+        {
+            Bindings bindings = registrations.get(name);
+            if (bindings != null)
+            {
+                result.put(name, bindings.objects.getFirst());
+            }
+            else if (notFound.contains(name))
+            {
+                errors.put(name, new NameNotFoundException(name));
+            }
+            else if (!currentLookups.get().contains(name))
+            {
+                pending.put(name, startLookup(name));
+            }
+        }
+
+        for (String name : names)
+        {
+            if (result.containsKey(name) || errors.containsKey(name))
+            {
+                continue;
+            }
+
             try
             {
-                // check again, since it might have been added before we acquired this lock.
-                registeredObjects = getRegisteredObjects(name);
-                if (registeredObjects != null)
+                ServiceInit init = pending.get(name);
+
+                // a name this thread is already creating is left to lookup, which reports the cycle
+                result.put(name, init != null ? await(init).getFirst() : lookup(name));
+            }
+            catch (NamingException e)
+            {
+                errors.put(name, e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Start creating a service on a thread of its own, unless it is already being created.
+     */
+    private ServiceInit startLookup(String name)
+    {
+        ServiceInit init = new ServiceInit(name);
+        ServiceInit existing = initializing.putIfAbsent(name, init);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try
+        {
+            getLookupExecutor().execute(() -> {
+                Thread thread = Thread.currentThread();
+                thread.setContextClassLoader(classLoader);
+                init.owner = thread;
+                currentLookups.get().add(name);
+                try
+                {
+                    initialize(init);
+                }
+                catch (NamingException | RuntimeException | Error e)
+                {
+                    // reported through the future
+                }
+                finally
                 {
-                    return registeredObjects;
+                    currentLookups.get().remove(name);
                 }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            initializing.remove(name, init);
+            init.future.completeExceptionally(e);
+        }
 
-                Class<?> clazz = Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+        return init;
+    }
+
+    /**
+     * Create the service that the current thread has claimed, and complete its future.
+     */
+    private List<Object> initialize(ServiceInit init) throws NamingException
+    {
+        try
+        {
+            // check again, since it might have been added before we claimed its creation.
+            List<Object> registeredObjects = getRegisteredObjects(init.name);
+            if (registeredObjects == null)
+            {
+                registeredObjects = createService(init.name);
+            }
+
+            init.future.complete(registeredObjects);
+            return registeredObjects;
+        }
+        catch (NameNotFoundException e)
+        {
+            notFound.add(init.name);
+            init.future.completeExceptionally(e);
+            throw e;
+        }
+        catch (NamingException | RuntimeException | Error e)
+        {
+            init.future.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            initializing.remove(init.name, init);
+        }
+    }
+
+    /**
+     * Look up a service, without creating an exception if it does not exist.
+     *
+     * @return The service, or an empty optional if there is no such service
+     * @throws NamingException If the service exists but could not be created
+     */
+    Optional<Object> tryLookup(String name) throws NamingException
+    {
+        Bindings bindings = registrations.get(name);
+        if (bindings != null)
+        {
+            return Optional.of(bindings.objects.getFirst());
+        }
+
+        if (notFound.contains(name))
+        {
+            return Optional.empty();
+        }
+
+        try
+        {
+            return Optional.of(lookupMultiple(name).getFirst());
+        }
+        catch (NameNotFoundException e)
+        {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Forget the names that could not be resolved, for example after the class path has changed.
+     */
+    void clearNegativeCache()
+    {
+        notFound.clear();
+    }
+
+    private List<Object> createService(String name) throws NamingException
+    {
+        try
+        {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            Class<?> clazz = Class.forName(name, true, classLoader);
 
+            List<String> providers = getServiceProviders(name, classLoader);
+            if (providers == null)
+            {
                 ServiceLoader<?> services = ServiceLoader.load(clazz);
                 Iterator<?> iter = services.iterator();
                 if (iter.hasNext())
@@ -246,38 +536,49 @@ class AppupContext implements Context, EventContext
 
                     return result;
                 }
-                else if (!clazz.isInterface())
+            }
+            else if (!providers.isEmpty())
+            {
+                LOGGER.debug("Creating service from SPI index: {}", name);
+
+                List<Object> result = new ArrayList<>();
+                for (String provider : providers)
                 {
-                    Resource resource = clazz.getAnnotation(Resource.class);
-                    if (resource == null)
-                    {
-                        throw new NameNotFoundException(name);
-                    }
+                    Object service = createProvider(clazz, provider, classLoader);
+                    initializeService(name, service);
+                    result.add(service);
+                }
 
-                    try
-                    {
-                        LOGGER.debug("Creating class from class annotation: {}", name);
-                        Object service = clazz.getConstructor().newInstance();
+                return result;
+            }
 
-                        initializeService(name, service);
+            if (!clazz.isInterface())
+            {
+                Resource resource = clazz.getAnnotation(Resource.class);
+                if (resource == null)
+                {
+                    throw new NameNotFoundException(name);
+                }
 
-                        return Collections.singletonList(service);
-                    }
-                    catch (ReflectiveOperationException e)
-                    {
-                        ConfigurationException exception = new ConfigurationException("Unable to create service instance: " + name);
-                        exception.setRootCause(e);
-                        throw exception;
-                    }
+                try
+                {
+                    LOGGER.debug("Creating class from class annotation: {}", name);
+                    Object service = newInstance(clazz);
+
+                    initializeService(name, service);
+
+                    return Collections.singletonList(service);
                 }
-                else
+                catch (ReflectiveOperationException e)
                 {
-                    throw new NameNotFoundException(name);
+                    ConfigurationException exception = new ConfigurationException("Unable to create service instance: " + name);
+                    exception.setRootCause(e);
+                    throw exception;
                 }
             }
-            finally
+            else
             {
-                writeLock.unlock();
+                throw new NameNotFoundException(name);
             }
         }
         catch (ClassNotFoundException e)
@@ -286,99 +587,178 @@ class AppupContext implements Context, EventContext
             exception.setRootCause(e);
             throw exception;
         }
-        finally
-        {
-            currentLookups.get().remove(name);
-        }
     }
 
-    @Override
-    public void bind(Name name, Object obj)
+    /**
+     * Get the SPI providers of a service from the service index of the class loader, which is built on first use.
+     *
+     * @return The provider class names, or <code>null</code> if the providers have to be loaded with a {@link ServiceLoader}
+     */
+    List<String> getServiceProviders(String name, ClassLoader classLoader)
     {
-        bind(name.toString(), obj);
+        return serviceIndexes.computeIfAbsent(classLoader, loader -> ServiceIndex.build(loader, serviceIndexCache)).getProviders(name);
     }
 
-    @Override
-    public void bind(String name, Object obj)
+    /**
+     * Set the file that caches the service index between runs. Must be set before the first service is created.
+     */
+    void setServiceIndexCache(File file)
     {
-        LOGGER.debug("Binding {}", name);
-
-        Registration registration;
+        serviceIndexCache = file;
+    }
 
-        writeLock.lock();
+    private static Object createProvider(Class<?> service, String provider, ClassLoader classLoader) throws NamingException
+    {
         try
         {
-            synchronized (registrations)
+            Class<?> clazz = Class.forName(provider, true, classLoader);
+            if (!service.isAssignableFrom(clazz))
             {
-                List<AppupContext.Registration> result = registrations.computeIfAbsent(name, k -> new ArrayList<>());
-                registration = new Registration(name, obj);
-                result.add(registration);
+                throw new ConfigurationException("Provider " + provider + " not a subtype of " + service.getName());
             }
+
+            return clazz.getConstructor().newInstance();
         }
-        finally
+        catch (ReflectiveOperationException | LinkageError e)
         {
-            writeLock.unlock();
+            ConfigurationException exception = new ConfigurationException("Unable to create service provider: " + provider);
+            exception.setRootCause(e);
+            throw exception;
         }
+    }
 
-        synchronized (listeners)
+    /**
+     * Wait for a service that is being created by another thread.
+     */
+    private List<Object> await(ServiceInit init) throws NamingException
+    {
+        Thread current = Thread.currentThread();
+
+        synchronized (waiting)
         {
-            List<ObjectChangeListener> l = listeners.get(name);
-            if (l != null)
+            // if the creating thread is (indirectly) waiting for this thread, neither could ever finish
+            for (ServiceInit next = init; next != null; next = waiting.get(next.owner))
             {
-                for (ObjectChangeListener listener : l)
+                if (next.owner == current)
                 {
-                    listener.objectChanged(new NamingEvent(this, NamingEvent.OBJECT_ADDED, registration.toBinding(), null, null));
+                    throw new ConfigurationException("Resource dependency cycle detected for object: " + init.name + "\n"
+                                                             + String.join("->", currentLookups.get()));
                 }
             }
+
+            waiting.put(current, init);
+        }
+
+        try
+        {
+            return init.future.get();
+        }
+        catch (ExecutionException e)
+        {
+            NamingException exception = e.getCause() instanceof NameNotFoundException
+                    ? new NameNotFoundException(init.name)
+                    : new ConfigurationException("Unable to create service instance: " + init.name);
+            exception.setRootCause(e.getCause());
+            throw exception;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted while waiting for service: " + init.name);
+        }
+        finally
+        {
+            synchronized (waiting)
+            {
+                waiting.remove(current);
+            }
         }
     }
 
     @Override
-    public void unbind(Name name)
+    public void bind(Name name, Object obj)
     {
-        unbind(name.toString());
+        bind(name.toString(), obj);
     }
 
     @Override
-    public void unbind(String name)
+    public void bind(String name, Object obj)
     {
-        Registration registration;
+        LOGGER.debug("Binding {}", name);
 
-        writeLock.lock();
-        try
+        Registration registration = new Registration(name, obj);
+        Bindings added = new Bindings(List.of(registration));
+        registrations.compute(name, (k, existing) -> publish(name, existing == null ? added : existing.add(added)));
+        notFound.remove(name);
+
+        dispatcher.fire(name, NamingEvent.OBJECT_ADDED, registration.toBinding(), null);
+    }
+
+    /**
+     * Update the reference of a name with its new bindings. Only called while the bindings are being replaced, so
+     * that references always see the latest bindings.
+     */
+    private Bindings publish(String name, Bindings bindings)
+    {
+        ServiceRef<?> ref = refs.get(name);
+        if (ref != null)
         {
-            synchronized (registrations)
-            {
-                List<AppupContext.Registration> result = registrations.remove(name);
-                if (result == null || result.isEmpty())
-                {
-                    return;
-                }
+            ref.value = bindings == null ? null : bindings.objects.getFirst();
+        }
 
-                if (result.size() > 1)
-                {
-                    LOGGER.warn("More than one registration for this name: {}", name);
-                }
+        return bindings;
+    }
 
-                registration = result.getFirst();
-            }
+    /**
+     * Get the reference to the service bound to a name.
+     */
+    @SuppressWarnings("unchecked")
+    <T> ServiceRef<T> ref(String name)
+    {
+        ServiceRef<?> ref = refs.get(name);
+        if (ref == null)
+        {
+            // created while the bindings of the name can't change, so that it starts out with the current binding
+            registrations.compute(name, (k, existing) -> {
+                refs.computeIfAbsent(name, n -> new ServiceRef<>(this, n));
+                return publish(name, existing);
+            });
+
+            ref = refs.get(name);
         }
-        finally
+
+        return (ServiceRef<T>) ref;
+    }
+
+    @Override
+    public void unbind(Name name)
+    {
+        unbind(name.toString());
+    }
+
+    @Override
+    public void unbind(String name)
+    {
+        Bindings[] removed = new Bindings[1];
+        registrations.computeIfPresent(name, (k, existing) -> {
+            removed[0] = existing;
+            return publish(name, null);
+        });
+
+        Bindings result = removed[0];
+        if (result == null)
         {
-            writeLock.unlock();
+            return;
         }
 
-        synchronized (listeners)
+        if (result.registrations.size() > 1)
         {
-            List<ObjectChangeListener> l = listeners.get(name);
-            if (l != null)
-            {
-                for (ObjectChangeListener listener : l)
-                {
-                    listener.objectChanged(new NamingEvent(this, NamingEvent.OBJECT_REMOVED, null, registration.toBinding(), null));
-                }
-            }
+            LOGGER.warn("More than one registration for this name: {}", name);
         }
+
+        Registration registration = result.registrations.getFirst();
+
+        dispatcher.fire(name, NamingEvent.OBJECT_REMOVED, null, registration.toBinding());
     }
 
     @Override
@@ -393,16 +773,13 @@ class AppupContext implements Context, EventContext
         // force lookup
         lookupMultiple(name);
 
-        synchronized (registrations)
+        Bindings bindings = registrations.get(name);
+        if (bindings == null)
         {
-            List<AppupContext.Registration> regs = registrations.get(name);
-            if (regs == null || regs.isEmpty())
-            {
-                throw new NameNotFoundException(name);
-            }
-
-            return new RegistrationEnumeration(new ArrayList<>(regs).iterator());
+            throw new NameNotFoundException(name);
         }
+
+        return new RegistrationEnumeration(bindings.registrations.iterator());
     }
 
     @Override
@@ -420,13 +797,34 @@ class AppupContext implements Context, EventContext
     @Override
     public void rebind(Name name, Object obj)
     {
-        throw new UnsupportedOperationException();
+        rebind(name.toString(), obj);
     }
 
+    /**
+     * Replace all bindings of a name with the given object. Lookups see either the old or the new binding, never
+     * neither.
+     */
     @Override
     public void rebind(String name, Object obj)
     {
-        throw new UnsupportedOperationException();
+        LOGGER.debug("Rebinding {}", name);
+
+        Registration registration = new Registration(name, obj);
+        Bindings[] replaced = new Bindings[1];
+        registrations.compute(name, (k, existing) -> {
+            replaced[0] = existing;
+            return publish(name, new Bindings(List.of(registration)));
+        });
+        notFound.remove(name);
+
+        if (replaced[0] == null)
+        {
+            dispatcher.fire(name, NamingEvent.OBJECT_ADDED, registration.toBinding(), null);
+        }
+        else
+        {
+            dispatcher.fire(name, NamingEvent.OBJECT_CHANGED, registration.toBinding(), replaced[0].registrations.getFirst().toBinding());
+        }
     }
 
     @Override
@@ -575,6 +973,87 @@ class AppupContext implements Context, EventContext
         }
     }
 
+    /**
+     * A service that is being created by a thread.
+     */
+    private static final class ServiceInit
+    {
+        private final String name;
+        private final CompletableFuture<List<Object>> future = new CompletableFuture<>();
+
+        /** The creating thread, which is only known once an asynchronous lookup has started */
+        private volatile Thread owner;
+
+        private ServiceInit(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The names that could not be resolved with each class loader, since a name that is missing for one class loader
+     * may well be found by another. The names of each class loader are dropped least recently used first.
+     */
+    private static final class NotFoundCache
+    {
+        private final Map<ClassLoader, Map<String, Boolean>> names = new WeakHashMap<>();
+
+        /**
+         * Whether the name could not be resolved with the context class loader of the current thread.
+         */
+        synchronized boolean contains(String name)
+        {
+            Map<String, Boolean> missing = names.get(Thread.currentThread().getContextClassLoader());
+            return missing != null && missing.get(name) != null;
+        }
+
+        /**
+         * Remember that the name could not be resolved with the context class loader of the current thread.
+         */
+        synchronized void add(String name)
+        {
+            names.computeIfAbsent(Thread.currentThread().getContextClassLoader(), k -> new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+                {
+                    return size() > NOT_FOUND_LIMIT;
+                }
+            }).put(name, Boolean.TRUE);
+        }
+
+        synchronized void remove(String name)
+        {
+            for (Map<String, Boolean> missing : names.values())
+            {
+                missing.remove(name);
+            }
+        }
+
+        synchronized void clear()
+        {
+            names.clear();
+        }
+    }
+
+    /**
+     * The registrations of a name together with their objects, so that a lookup can return the objects as they are.
+     */
+    private record Bindings(List<Registration> registrations, List<Object> objects)
+    {
+        private Bindings(List<Registration> registrations)
+        {
+            this(registrations, registrations.stream().map(Registration::object).toList());
+        }
+
+        private Bindings add(Bindings other)
+        {
+            List<Registration> result = new ArrayList<>(registrations);
+            result.addAll(other.registrations);
+            return new Bindings(List.copyOf(result));
+        }
+    }
+
     private record Registration(String name, Object object)
     {
         public Binding toBinding()
@@ -23,7 +23,7 @@ import javax.naming.spi.InitialContextFactory;
 
 public class AppupInitialContextFactory implements InitialContextFactory
 {
-    private static final AppupContext INSTANCE;
+    static final AppupContext INSTANCE;
 
     static
     {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Resource;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Direct access to the services of the context created by {@link AppupInitialContextFactory}.
+ */
+public final class AppupServices
+{
+    private AppupServices()
+    {
+
+    }
+
+    /**
+     * Cache the index of the <code>META-INF/services</code> provider configurations in the given file, so that only
+     * changed jars are read again on the next start. Must be set before the first service lookup.
+     */
+    public static void setServiceIndexCache(File file)
+    {
+        AppupInitialContextFactory.INSTANCE.setServiceIndexCache(file);
+    }
+
+    /**
+     * Get a service by its type, which is also the name it is bound with. This is the same as a JNDI lookup of the
+     * class name, but without creating an {@link InitialContext} or parsing the name.
+     *
+     * @param type The service type
+     * @return The service
+     * @throws NamingException If there is no such service, or it could not be created
+     */
+    public static <T> T get(Class<T> type) throws NamingException
+    {
+        return AppupInitialContextFactory.INSTANCE.get(type);
+    }
+
+    /**
+     * Look up a service by name, without creating an {@link InitialContext}.
+     *
+     * @param name The name the service is bound with
+     * @return The service
+     * @throws NamingException If there is no such service, or it could not be created
+     */
+    public static Object lookup(String name) throws NamingException
+    {
+        return AppupInitialContextFactory.INSTANCE.lookup(name);
+    }
+
+    /**
+     * Get a reference to the service bound to the name of the given type, which always returns the current binding.
+     *
+     * @see ServiceRef
+     */
+    public static <T> ServiceRef<T> ref(Class<T> type)
+    {
+        return AppupInitialContextFactory.INSTANCE.ref(type.getName());
+    }
+
+    /**
+     * Get a reference to the service bound to the given name, which always returns the current binding.
+     *
+     * @see ServiceRef
+     */
+    public static <T> ServiceRef<T> ref(String name)
+    {
+        return AppupInitialContextFactory.INSTANCE.ref(name);
+    }
+
+    /**
+     * Deliver naming events to listeners on the given executor instead of the thread that binds the name. Each
+     * listener still receives its events in order.
+     *
+     * Without an executor, listeners run on the binding thread before the bind returns, unless another thread is
+     * already delivering events to the same listener. In that case that thread delivers the event once the earlier
+     * ones are done, and the bind does not wait for it.
+     *
+     * @param executor The executor that runs the listeners
+     * @param coalesce Whether consecutive events for the same name that are still queued are merged into one
+     */
+    public static void setEventExecutor(Executor executor, boolean coalesce)
+    {
+        AppupInitialContextFactory.INSTANCE.setEventExecutor(executor, coalesce);
+    }
+
+    /**
+     * Set the executor that creates services for {@link #lookupAsync(Class)}, {@link #lookupAll(Collection, Map)} and
+     * parallel injection. By default each service is created on a virtual thread, or on a pool of
+     * <code>appup.lookupThreads</code> platform threads when that property is set; the default executor is shut down
+     * when the context is closed. An executor set here is left for the caller to shut down.
+     *
+     * @param executor The executor, or <code>null</code> to go back to the default one
+     */
+    public static void setLookupExecutor(Executor executor)
+    {
+        AppupInitialContextFactory.INSTANCE.setLookupExecutor(executor);
+    }
+
+    /**
+     * Look up a service by its type without blocking the caller. Concurrent lookups of a service share a single
+     * creation, whether they are asynchronous or not.
+     *
+     * @param type The service type, which is also the name it is bound with
+     * @return A future that completes with the service, or exceptionally with the {@link NamingException} of the lookup
+     */
+    public static <T> CompletableFuture<T> lookupAsync(Class<T> type)
+    {
+        return AppupInitialContextFactory.INSTANCE.lookupAsync(type.getName()).thenApply(type::cast);
+    }
+
+    /**
+     * Look up several services at once. The services that are not bound yet are created concurrently, and every
+     * failure is reported rather than just the first.
+     *
+     * @param names The service names
+     * @param errors Receives the exception of each name that could not be looked up
+     * @return The services that were looked up, by name
+     */
+    public static Map<String, Object> lookupAll(Collection<String> names, Map<String, NamingException> errors)
+    {
+        return AppupInitialContextFactory.INSTANCE.lookupAll(names, errors);
+    }
+
+    /**
+     * Look up an optional service by its type. Missing services are remembered per context class loader until they
+     * are bound, so repeated probes are cheap and never create an exception.
+     *
+     * @param type The service type, which is also the name it is bound with
+     * @return The service, or an empty optional if there is no such service
+     * @throws NamingException If the service exists but could not be created
+     */
+    public static <T> Optional<T> tryLookup(Class<T> type) throws NamingException
+    {
+        return AppupInitialContextFactory.INSTANCE.tryLookup(type.getName()).map(type::cast);
+    }
+
+    /**
+     * Forget the services that were not found, so that the next lookup resolves them again.
+     */
+    public static void clearNegativeCache()
+    {
+        AppupInitialContextFactory.INSTANCE.clearNegativeCache();
+    }
+
+    /**
+     * Create the services that the given classes depend on through {@link Resource} injection, so that they are
+     * ready before the classes are started. Dependencies are created in parallel where the dependency graph allows it.
+     *
+     * @param roots Service or lifecycle classes. Classes that are services themselves are created as well.
+     * @param executor The executor used to create the services
+     * @throws NamingException If there is a dependency cycle or a service could not be created
+     */
+    public static void warmUp(Collection<Class<?>> roots, Executor executor) throws NamingException
+    {
+        AppupInitialContextFactory.INSTANCE.warmUp(roots, executor);
+    }
+}
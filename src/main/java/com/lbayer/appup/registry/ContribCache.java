@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On disk cache of the compiled contribution indexes of plugin configurations, so that a restart only has to parse
+ * the plugin.xml files of jars that changed. Entries are keyed by the plugin configuration URL and are only used
+ * while the path, size and modification time of the containing jar still match.
+ *
+ * The cache file is memory mapped, and the cached indexes are read straight from the mapping.
+ */
+final class ContribCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContribCache.class);
+
+    private static final int MAGIC = 0x41505043;
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final Map<String, Entry> loaded;
+    private final Map<String, Entry> current = new LinkedHashMap<>();
+
+    private boolean modified;
+
+    private ContribCache(Path file, Map<String, Entry> loaded)
+    {
+        this.file = file;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Open the cache in the given file. A missing or unreadable file results in an empty cache.
+     */
+    static ContribCache open(File file)
+    {
+        Path path = file.toPath();
+        Map<String, Entry> entries = new HashMap<>();
+        if (Files.isRegularFile(path))
+        {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() == MAGIC && buffer.getInt() == VERSION)
+                {
+                    int count = buffer.getInt();
+                    for (int i = 0; i < count; i++)
+                    {
+                        Entry entry = new Entry(readString(buffer), readString(buffer), buffer.getLong(), buffer.getLong(), readBytes(buffer));
+                        entries.put(entry.resource, entry);
+                    }
+                }
+            }
+            catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e)
+            {
+                LOGGER.warn("Ignoring unreadable contribution cache: {}", file, e);
+                entries.clear();
+            }
+        }
+
+        return new ContribCache(path, entries);
+    }
+
+    /**
+     * Get the cached index of a plugin configuration.
+     *
+     * @param resource The plugin configuration URL
+     * @param jar The jar that contains the configuration
+     * @return The index, or <code>null</code> if it is not cached or the jar has changed
+     */
+    ByteBuffer get(String resource, File jar)
+    {
+        Entry entry = loaded.get(resource);
+        if (entry == null || !entry.jar.equals(jar.getPath()) || entry.size != jar.length() || entry.lastModified != jar.lastModified())
+        {
+            return null;
+        }
+
+        current.put(resource, entry);
+        return entry.index.duplicate();
+    }
+
+    void put(String resource, File jar, ByteBuffer index)
+    {
+        current.put(resource, new Entry(resource, jar.getPath(), jar.length(), jar.lastModified(), index.duplicate()));
+        modified = true;
+    }
+
+    /**
+     * Write the cache back to disk, if any entries were added or are no longer used.
+     */
+    void save() throws IOException
+    {
+        if (!modified && current.keySet().equals(loaded.keySet()))
+        {
+            return;
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+
+        // write a new file rather than overwriting the one that is still mapped
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(current.size());
+            for (Entry entry : current.values())
+            {
+                writeString(out, entry.resource);
+                writeString(out, entry.jar);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+
+                byte[] index = new byte[entry.index.remaining()];
+                entry.index.duplicate().get(index);
+                out.writeInt(index.length);
+                out.write(index);
+            }
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer readBytes(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        ByteBuffer slice = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private record Entry(String resource, String jar, long size, long lastModified, ByteBuffer index)
+    {
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+/**
+ * Receives the structure of a plugin configuration as a stream of events, regardless of whether it came from a
+ * plugin.xml or from a compiled contribution index.
+ */
+interface ContribHandler
+{
+    void startExtension(String point);
+
+    /**
+     * @param name The element name
+     * @param attributes The element attributes as alternating name and value entries
+     */
+    void startElement(String name, String[] attributes);
+
+    void endElement();
+
+    void endExtension();
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary form of a plugin configuration, so that contributions can be registered without parsing any XML.
+ *
+ * <pre>
+ * index     := MAGIC VERSION stringCount string* extensionCount extension*
+ * string    := length utf8Bytes
+ * extension := pointId blockLength element*
+ * element   := ELEMENT nameId attrCount (nameId valueId)* element* END
+ * </pre>
+ *
+ * All counts, lengths and ids are unsigned variable length integers. Ids are indexes into the string table.
+ */
+final class ContribIndex
+{
+    /** Location of the compiled index inside a plugin jar */
+    static final String RESOURCE = "META-INF/plugin.idx";
+
+    private static final int MAGIC = 0x41505049;
+    private static final int VERSION = 1;
+
+    private static final byte END = 0;
+    private static final byte ELEMENT = 1;
+
+    private ContribIndex()
+    {
+
+    }
+
+    /**
+     * Report all extensions in the given index to the handler.
+     *
+     * @param index The index, positioned at its start
+     * @param handler The handler to receive the extensions
+     * @throws IOException If the buffer does not contain a valid index
+     */
+    static void read(ByteBuffer index, ContribHandler handler) throws IOException
+    {
+        Table table = scan(index);
+        for (Extent extent : table.extents)
+        {
+            table.read(extent, handler);
+        }
+    }
+
+    /**
+     * Read the string table of the given index and locate its extensions, without reading the extensions themselves.
+     *
+     * @param index The index, positioned at its start
+     * @return The table of the index contents
+     * @throws IOException If the buffer does not contain a valid index
+     */
+    static Table scan(ByteBuffer index) throws IOException
+    {
+        try
+        {
+            if (index.getInt() != MAGIC)
+            {
+                throw new IOException("Not a contribution index");
+            }
+
+            int version = readInt(index);
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported contribution index version: " + version);
+            }
+
+            String[] strings = new String[readInt(index)];
+            for (int i = 0; i < strings.length; i++)
+            {
+                strings[i] = readString(index);
+            }
+
+            Extent[] extents = new Extent[readInt(index)];
+            for (int i = 0; i < extents.length; i++)
+            {
+                String point = strings[readInt(index)];
+                int length = readInt(index);
+                extents[i] = new Extent(point, index.position(), length);
+                index.position(index.position() + length);
+            }
+
+            return new Table(index, strings, List.of(extents));
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            throw new IOException("Corrupt contribution index", e);
+        }
+    }
+
+    private static void readElement(ByteBuffer index, String[] strings, ContribHandler handler) throws IOException
+    {
+        if (index.get() != ELEMENT)
+        {
+            throw new IOException("Corrupt contribution index");
+        }
+
+        String name = strings[readInt(index)];
+        String[] attributes = new String[readInt(index) * 2];
+        for (int i = 0; i < attributes.length; i++)
+        {
+            attributes[i] = strings[readInt(index)];
+        }
+
+        handler.startElement(name, attributes);
+        while (index.get(index.position()) != END)
+        {
+            readElement(index, strings, handler);
+        }
+        index.get();
+        handler.endElement();
+    }
+
+    private static String readString(ByteBuffer index)
+    {
+        byte[] bytes = new byte[readInt(index)];
+        index.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readInt(ByteBuffer index)
+    {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = index.get();
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return result;
+    }
+
+    /**
+     * The location of a single extension within an index.
+     */
+    record Extent(String point, int offset, int length)
+    {
+    }
+
+    /**
+     * The string table and extension locations of an index, from which single extensions can be read on demand.
+     */
+    static final class Table
+    {
+        private final ByteBuffer index;
+        private final String[] strings;
+        private final List<Extent> extents;
+
+        private Table(ByteBuffer index, String[] strings, List<Extent> extents)
+        {
+            this.index = index;
+            this.strings = strings;
+            this.extents = extents;
+        }
+
+        List<Extent> getExtents()
+        {
+            return extents;
+        }
+
+        /**
+         * @return The number of bytes the index occupies
+         */
+        int size()
+        {
+            return index.limit();
+        }
+
+        /**
+         * Report a single extension of this index to the handler. Safe to call from multiple threads.
+         */
+        void read(Extent extent, ContribHandler handler) throws IOException
+        {
+            ByteBuffer block = index.duplicate();
+            block.limit(extent.offset + extent.length).position(extent.offset);
+
+            try
+            {
+                handler.startExtension(extent.point);
+                while (block.hasRemaining())
+                {
+                    readElement(block, strings, handler);
+                }
+                handler.endExtension();
+            }
+            catch (BufferUnderflowException | IndexOutOfBoundsException e)
+            {
+                throw new IOException("Corrupt contribution index", e);
+            }
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Builds an index from the extensions reported to it.
+     */
+    static class Writer implements ContribHandler
+    {
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+        private int extensionCount;
+        private int pointId;
+
+        @Override
+        public void startExtension(String point)
+        {
+            pointId = stringId(point);
+            block.reset();
+        }
+
+        @Override
+        public void startElement(String name, String[] attributes)
+        {
+            block.write(ELEMENT);
+            writeInt(block, stringId(name));
+            writeInt(block, attributes.length / 2);
+            for (String attribute : attributes)
+            {
+                writeInt(block, stringId(attribute));
+            }
+        }
+
+        @Override
+        public void endElement()
+        {
+            block.write(END);
+        }
+
+        @Override
+        public void endExtension()
+        {
+            writeInt(extensions, pointId);
+            writeInt(extensions, block.size());
+            extensions.writeBytes(block.toByteArray());
+            extensionCount++;
+        }
+
+        private int stringId(String string)
+        {
+            return stringIds.computeIfAbsent(string, k -> {
+                strings.add(k);
+                return strings.size() - 1;
+            });
+        }
+
+        void writeTo(OutputStream out) throws IOException
+        {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.writeBytes(ByteBuffer.allocate(4).putInt(MAGIC).array());
+            writeInt(header, VERSION);
+            writeInt(header, strings.size());
+            for (String string : strings)
+            {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeInt(header, bytes.length);
+                header.writeBytes(bytes);
+            }
+            writeInt(header, extensionCount);
+
+            header.writeTo(out);
+            extensions.writeTo(out);
+        }
+
+        byte[] toByteArray()
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try
+            {
+                writeTo(out);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException(e);
+            }
+
+            return out.toByteArray();
+        }
+    }
+}
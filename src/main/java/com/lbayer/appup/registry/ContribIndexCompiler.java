@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Build time tool that compiles plugin.xml files into the binary contribution index that {@link ContribRegistry}
+ * loads in place of the XML.
+ *
+ * <pre>
+ * java com.lbayer.appup.registry.ContribIndexCompiler &lt;output&gt; &lt;plugin.xml&gt;...
+ * </pre>
+ */
+public final class ContribIndexCompiler
+{
+    private ContribIndexCompiler()
+    {
+
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: ContribIndexCompiler <output> <plugin.xml>...");
+            System.exit(10);
+        }
+
+        File[] inputs = new File[args.length - 1];
+        for (int i = 1; i < args.length; i++)
+        {
+            inputs[i - 1] = new File(args[i]);
+        }
+
+        File output = new File(args[0]);
+        File parent = output.getParentFile();
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+
+        try (OutputStream out = new FileOutputStream(output))
+        {
+            compile(out, inputs);
+        }
+    }
+
+    /**
+     * Compile the given plugin.xml files into a single contribution index.
+     *
+     * @param out The stream to write the index to
+     * @param pluginConfigs The plugin.xml files
+     * @throws IOException If a file could not be read or parsed
+     */
+    public static void compile(OutputStream out, File... pluginConfigs) throws IOException
+    {
+        ContribIndex.Writer writer = new ContribIndex.Writer();
+        for (File pluginConfig : pluginConfigs)
+        {
+            try (InputStream in = new FileInputStream(pluginConfig))
+            {
+                ContribParser.parse(in, writer);
+            }
+        }
+
+        writer.writeTo(out);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads plugin.xml files and reports their extensions to a {@link ContribHandler}.
+ *
+ * The file is streamed, so the handler sees each element as it is read and no document tree is ever built.
+ */
+final class ContribParser
+{
+    private static final XMLInputFactory FACTORY;
+
+    static
+    {
+        FACTORY = XMLInputFactory.newInstance();
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    }
+
+    private ContribParser()
+    {
+
+    }
+
+    static void parse(InputStream pluginConfig, ContribHandler handler) throws IOException
+    {
+        try
+        {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(pluginConfig);
+            try
+            {
+                while (reader.hasNext())
+                {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("extension"))
+                    {
+                        parseExtension(reader, handler);
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    private static void parseExtension(XMLStreamReader reader, ContribHandler handler) throws XMLStreamException
+    {
+        String point = reader.getAttributeValue(null, "point");
+        if (point == null)
+        {
+            return;
+        }
+
+        handler.startExtension(point);
+
+        int depth = 1;
+        while (depth > 0)
+        {
+            switch (reader.next())
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                String[] attributes = new String[reader.getAttributeCount() * 2];
+                for (int i = 0; i < reader.getAttributeCount(); i++)
+                {
+                    attributes[i * 2] = getAttributeName(reader, i);
+                    attributes[i * 2 + 1] = reader.getAttributeValue(i);
+                }
+
+                handler.startElement(reader.getLocalName(), attributes);
+                depth++;
+                break;
+
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                if (depth > 0)
+                {
+                    handler.endElement();
+                }
+                break;
+
+            default:
+                break;
+            }
+        }
+
+        handler.endExtension();
+    }
+
+    private static String getAttributeName(XMLStreamReader reader, int index)
+    {
+        // keep prefixed names intact, the same as the attribute names of a non namespace aware DOM
+        String prefix = reader.getAttributePrefix(index);
+        String name = reader.getAttributeLocalName(index);
+        return prefix == null || prefix.isEmpty() ? name : prefix + ':' + name;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Path based selection of contribution elements, as used by {@link IContribRegistry#find(String, String, String, String)}.
+ */
+final class ContribQuery
+{
+    private ContribQuery()
+    {
+
+    }
+
+    /**
+     * Select the elements at the given path.
+     *
+     * @param contribs The top level elements of an extension point
+     * @param path Slash separated element names, starting with the name of the top level element
+     * @return The matching elements, in document order
+     */
+    static List<IContribElement> select(List<IContribElement> contribs, String path)
+    {
+        String[] names = path.split("/");
+
+        List<IContribElement> current = new ArrayList<>();
+        for (IContribElement element : contribs)
+        {
+            if (element.getName().equals(names[0]))
+            {
+                current.add(element);
+            }
+        }
+
+        for (int i = 1; i < names.length && !current.isEmpty(); i++)
+        {
+            List<IContribElement> next = new ArrayList<>();
+            for (IContribElement element : current)
+            {
+                next.addAll(element.getChildElements(names[i]));
+            }
+            current = next;
+        }
+
+        return current;
+    }
+
+    /**
+     * Select the elements at the given path that have an attribute with the given value.
+     */
+    static List<IContribElement> find(List<IContribElement> contribs, String path, String attribute, String value)
+    {
+        requireValue(value);
+
+        List<IContribElement> result = new ArrayList<>();
+        for (IContribElement element : select(contribs, path))
+        {
+            if (value.equals(element.getAttribute(attribute)))
+            {
+                result.add(element);
+            }
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Reject a <code>null</code> attribute value, which no element can have.
+     */
+    static void requireValue(String value)
+    {
+        Objects.requireNonNull(value, "The attribute value to find must not be null");
+    }
+
+    /**
+     * Group the elements at the given path by the value of an attribute. Elements without the attribute are left out.
+     */
+    static Map<String, List<IContribElement>> index(List<IContribElement> contribs, String path, String attribute)
+    {
+        Map<String, List<IContribElement>> index = new HashMap<>();
+        for (IContribElement element : select(contribs, path))
+        {
+            String value = element.getAttribute(attribute);
+            if (value != null)
+            {
+                index.computeIfAbsent(value, k -> new ArrayList<>()).add(element);
+            }
+        }
+
+        index.replaceAll((k, v) -> List.copyOf(v));
+        return index;
+    }
+}
@@ -16,183 +16,1189 @@
 package com.lbayer.appup.registry;
 
 import com.lbayer.appup.internal.InjectionElf;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.naming.NamingException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class ContribRegistry implements IContribRegistry
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ContribRegistry implements IContribRegistry, AutoCloseable
 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContribRegistry.class);
+
+    private static final IContribElement[] EMPTY = new IContribElement[0];
+
+    private static final int DEFAULT_POOL_SIZE = 8;
+
+    /** Marks class names in {@link #classes} that failed to load */
+    private static final Object MISSING = new Object();
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
     private ClassLoader classLoader;
 
+    /**
+     * Immutable snapshot of all contributions, replaced as a whole whenever plugins are registered or unregistered so
+     * that readers never need to lock.
+     */
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+
+    /** Lock that serializes modifications of the {@link #snapshot} */
+    private final Object writeLock = new Object();
+
+    /** Element and attribute names shared by all plugins */
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+
+    /** Attribute names that {@link #find(String, String, String, String)} looks up through a hash index */
+    private volatile Set<String> indexedAttributes = Collections.emptySet();
+
+    /** Classes loaded for contributions, or {@link #MISSING} for names that failed to load */
+    private final ConcurrentMap<String, Object> classes = new ConcurrentHashMap<>();
+
+    /** When set, the element trees of an extension point are only built on the first request for that point */
+    private volatile boolean lazy;
+
+    private File cacheFile;
+
+    /** Elements that hold singleton or pooled instances, which are destroyed when the registry is closed */
+    private final Set<ContribElement> scopedElements = ConcurrentHashMap.newKeySet();
+
     public ContribRegistry(ClassLoader classLoader)
     {
         this.classLoader = classLoader;
     }
 
+    /**
+     * Register the contributions of every jar on the class loader. Jars that contain a compiled contribution index
+     * (see {@link ContribIndexCompiler}) are loaded from the index, all others from their plugin.xml.
+     *
+     * If a cache file has been set, the compiled plugin configurations of unchanged jars are read back from it, and
+     * only the plugin.xml files of new or modified jars are parsed.
+     *
+     * @throws IOException If a plugin configuration could not be read
+     */
     public void initializeFromClassLoader() throws IOException
     {
-        initializeResources("META-INF/plugin.xml");
-        initializeResources("plugin.xml");
+        ContribCache cache = cacheFile != null ? ContribCache.open(cacheFile) : null;
+
+        Set<String> indexedJars = new HashSet<>();
+        initializeResources(ContribIndex.RESOURCE, indexedJars, true, cache);
+        initializeResources("META-INF/plugin.xml", indexedJars, false, cache);
+        initializeResources("plugin.xml", indexedJars, false, cache);
+
+        if (cache != null)
+        {
+            try
+            {
+                cache.save();
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Unable to save contribution cache: {}", cacheFile, e);
+            }
+        }
     }
 
-    private void initializeResources(String name) throws IOException
+    private void initializeResources(String name, Set<String> indexedJars, boolean index, ContribCache cache) throws IOException
     {
         Enumeration<URL> urls = classLoader.getResources(name);
         while (urls.hasMoreElements())
         {
             URL url = urls.nextElement();
-            try (InputStream in = url.openStream())
+            URLConnection conn = url.openConnection();
+            if (!(conn instanceof JarURLConnection))
+            {
+                continue;
+            }
+
+            URL jarUrl = ((JarURLConnection) conn).getJarFileURL();
+            String owner = jarUrl.toString();
+            if (index)
             {
-                URLConnection conn = url.openConnection();
-                if (conn instanceof JarURLConnection)
+                indexedJars.add(owner);
+            }
+            else if (indexedJars.contains(owner))
+            {
+                continue;
+            }
+
+            File jar = cache != null ? toFile(jarUrl) : null;
+            if (jar != null)
+            {
+                ByteBuffer compiled = cache.get(url.toString(), jar);
+                if (compiled == null)
+                {
+                    try (InputStream in = url.openStream())
+                    {
+                        compiled = ByteBuffer.wrap(index ? in.readAllBytes() : compile(in));
+                    }
+                    cache.put(url.toString(), jar, compiled);
+                }
+
+                registerIndex(new Plugin(jarUrl, owner), compiled);
+            }
+            else
+            {
+                try (InputStream in = url.openStream())
                 {
-                    URL jarUrl = ((JarURLConnection) conn).getJarFileURL();
-                    register(jarUrl, jarUrl.toString(), in);
+                    if (index)
+                    {
+                        registerIndex(jarUrl, owner, in);
+                    }
+                    else
+                    {
+                        register(jarUrl, owner, in);
+                    }
                 }
             }
         }
     }
 
+    private static File toFile(URL url)
+    {
+        if (!"file".equals(url.getProtocol()))
+        {
+            return null;
+        }
+
+        try
+        {
+            return new File(url.toURI());
+        }
+        catch (URISyntaxException | IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Keep the compiled plugin configurations of the jars on the class loader in the given file, so that
+     * {@link #initializeFromClassLoader()} only has to parse the plugin.xml files of jars that changed since the last
+     * run.
+     *
+     * @param cacheFile The cache file, or <code>null</code> to disable the cache
+     */
+    public void setCacheFile(File cacheFile)
+    {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Load and initialize the classes named by the <code>class</code> attributes of the given extension points in the
+     * background, so that the first {@link IContribElement#createClass(String)} or
+     * {@link IContribElement#createInstance(String)} call for them does not pay for class loading.
+     *
+     * @param contribTypeIds The extension points to load classes for
+     * @param parallelism The maximum number of threads to load classes on, at least one thread is always used
+     * @return A future that completes once all classes have been attempted
+     */
+    public CompletableFuture<Void> prewarmClasses(Collection<String> contribTypeIds, int parallelism)
+    {
+        Set<String> classnames = new LinkedHashSet<>();
+        for (String contribTypeId : contribTypeIds)
+        {
+            collectClassnames(getContribElements(contribTypeId), classnames);
+        }
+
+        if (classnames.isEmpty())
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, classnames.size())), r -> {
+            Thread thread = new Thread(r, "appup-prewarm-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        LOGGER.debug("Prewarming {} contribution classes", classnames.size());
+
+        CompletableFuture<?>[] futures = classnames.stream()
+                .map(classname -> CompletableFuture.runAsync(() -> {
+                    try
+                    {
+                        loadClass(classname, true);
+                    }
+                    catch (ClassNotFoundException | LinkageError e)
+                    {
+                        LOGGER.debug("Unable to prewarm contribution class: {}", classname, e);
+                    }
+                }, executor))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(futures).whenComplete((v, t) -> executor.shutdown());
+    }
+
+    private static void collectClassnames(List<IContribElement> elements, Set<String> classnames)
+    {
+        for (IContribElement element : elements)
+        {
+            String classname = element.getAttribute("class");
+            if (classname != null && !classname.isEmpty())
+            {
+                classnames.add(classname);
+            }
+
+            for (List<IContribElement> children : ((ContribElement) element).children.values())
+            {
+                collectClassnames(children, classnames);
+            }
+        }
+    }
+
+    /**
+     * Load a class through the registry wide class cache. Names that fail to load are remembered as well, so that
+     * they are not searched for again until the next plugin is registered.
+     */
+    private Class<?> loadClass(String classname, boolean initialize) throws ClassNotFoundException
+    {
+        Object cached = classes.get(classname);
+        if (cached == null)
+        {
+            try
+            {
+                cached = Class.forName(classname, initialize, classLoader);
+            }
+            catch (ClassNotFoundException e)
+            {
+                cached = MISSING;
+            }
+
+            classes.putIfAbsent(classname, cached);
+        }
+
+        if (cached == MISSING)
+        {
+            throw new ClassNotFoundException(classname);
+        }
+
+        return (Class<?>) cached;
+    }
+
     @Override
     public IContribElement[] getContribElementsFor(String contribTypeId)
     {
-        List<ContribElement> results = contribs.get(contribTypeId);
-        if (results == null)
+        Contribs contribs = snapshot.contribs.get(contribTypeId);
+        return contribs != null ? contribs.getArray() : EMPTY;
+    }
+
+    @Override
+    public List<IContribElement> getContribElements(String contribTypeId)
+    {
+        return getContribElements(snapshot, contribTypeId);
+    }
+
+    @Override
+    public List<IContribElement> find(String contribTypeId, String path, String attribute, String value)
+    {
+        ContribQuery.requireValue(value);
+
+        if (!indexedAttributes.contains(attribute))
+        {
+            return ContribQuery.find(getContribElements(contribTypeId), path, attribute, value);
+        }
+
+        // the index is built on first use and lives as long as the snapshot it was built from
+        Snapshot current = snapshot;
+        Map<String, List<IContribElement>> index = current.indexes.computeIfAbsent(new IndexKey(contribTypeId, path, attribute),
+                k -> ContribQuery.index(getContribElements(current, contribTypeId), path, attribute));
+
+        return index.getOrDefault(value, Collections.emptyList());
+    }
+
+    /**
+     * Look up the given attribute through a hash index in {@link #find(String, String, String, String)}, rather than
+     * by comparing the attribute of every element. Meant for attributes that identify an element, such as
+     * <code>id</code> or <code>class</code>.
+     *
+     * @param attribute The attribute name
+     */
+    public void addAttributeIndex(String attribute)
+    {
+        synchronized (writeLock)
+        {
+            Set<String> attributes = new HashSet<>(indexedAttributes);
+            attributes.add(attribute);
+            indexedAttributes = Set.copyOf(attributes);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<IContribElement> getContribElements(Snapshot snapshot, String contribTypeId)
+    {
+        Contribs contribs = snapshot.contribs.get(contribTypeId);
+        if (contribs == null)
         {
-            return new IContribElement[0];
+            return Collections.emptyList();
         }
 
-        return results.toArray(new IContribElement[results.size()]);
+        // the element lists are immutable, so they can be handed out as is
+        return (List<IContribElement>) (List<?>) contribs.get();
     }
 
-    private Map<String, List<ContribElement>> contribs = new HashMap<>();
+    /**
+     * Only build the element trees of an extension point when it is first requested. Plugins registered in lazy mode
+     * are scanned once to find out which extension points they contribute to, and are kept in their compact
+     * contribution index form until then. Applies to plugins registered after this call.
+     *
+     * @param lazy <code>true</code> to build element trees on demand
+     */
+    public void setLazy(boolean lazy)
+    {
+        this.lazy = lazy;
+    }
 
-    private List<ContribElement> createElements(URL ownerURL, String owner, Node extension)
+    public void register(URL ownerURL, String owner, InputStream pluginConfig)
     {
-        List<ContribElement> result = new ArrayList<>();
+        try
+        {
+            if (lazy)
+            {
+                registerIndex(new Plugin(ownerURL, owner), ByteBuffer.wrap(compile(pluginConfig)));
+            }
+            else
+            {
+                ElementBuilder builder = new ElementBuilder(new Plugin(ownerURL, owner));
+                ContribParser.parse(pluginConfig, builder);
+                publish(builder.extensions);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Register the contributions from a compiled contribution index.
+     *
+     * @param ownerURL The URL of the jar the index came from
+     * @param owner The owner of the contributions
+     * @param index The index, as written by {@link ContribIndexCompiler}
+     */
+    public void registerIndex(URL ownerURL, String owner, InputStream index)
+    {
+        try
+        {
+            registerIndex(new Plugin(ownerURL, owner), ByteBuffer.wrap(index.readAllBytes()));
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void registerIndex(Plugin plugin, ByteBuffer index)
+    {
+        try
+        {
+            if (lazy)
+            {
+                publishLazy(plugin, ContribIndex.scan(index));
+            }
+            else
+            {
+                ElementBuilder builder = new ElementBuilder(plugin);
+                ContribIndex.read(index, builder);
+                publish(builder.extensions);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] compile(InputStream pluginConfig) throws IOException
+    {
+        ContribIndex.Writer writer = new ContribIndex.Writer();
+        ContribParser.parse(pluginConfig, writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Remove all contributions of the given owner. Readers see either all or none of the owner's contributions.
+     *
+     * @param owner The owner the contributions were registered with
+     * @return <code>true</code> if any contributions were removed
+     */
+    public boolean unregister(String owner)
+    {
+        boolean removed = false;
+        synchronized (writeLock)
+        {
+            Map<String, Contribs> contribs = new HashMap<>();
+            for (Map.Entry<String, Contribs> entry : snapshot.contribs.entrySet())
+            {
+                Contribs remaining = entry.getValue().without(owner);
+                removed |= remaining != entry.getValue();
+                if (remaining != null)
+                {
+                    contribs.put(entry.getKey(), remaining);
+                }
+            }
+
+            if (removed)
+            {
+                snapshot = new Snapshot(contribs);
+            }
+        }
+
+        for (ContribElement element : scopedElements)
+        {
+            if (element.plugin.owner.equals(owner))
+            {
+                scopedElements.remove(element);
+                element.destroyInstances();
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Destroy all singleton and pooled contribution instances, invoking their {@link PreDestroy} methods.
+     */
+    @Override
+    public void close()
+    {
+        for (ContribElement element : scopedElements)
+        {
+            scopedElements.remove(element);
+            element.destroyInstances();
+        }
+    }
+
+    private static void destroyInstance(Object instance)
+    {
+        try
+        {
+            InjectionElf.invokeMethodsWithAnnotation(PreDestroy.class, instance);
+        }
+        catch (IllegalAccessException | InvocationTargetException | RuntimeException e)
+        {
+            LOGGER.warn("Error destroying contribution instance: {}", instance, e);
+        }
+    }
+
+    private void publish(Map<String, List<ContribElement>> added)
+    {
+        Map<String, List<Object>> parts = new HashMap<>();
+        for (Map.Entry<String, List<ContribElement>> entry : added.entrySet())
+        {
+            parts.put(entry.getKey(), List.of(List.copyOf(entry.getValue())));
+        }
+
+        publishParts(parts);
+    }
+
+    private void publishLazy(Plugin plugin, ContribIndex.Table table)
+    {
+        Map<String, List<Object>> parts = new HashMap<>();
+        for (ContribIndex.Extent extent : table.getExtents())
+        {
+            parts.computeIfAbsent(extent.point(), k -> new ArrayList<>()).add(new LazyExtent(plugin, table, extent));
+        }
+
+        publishParts(parts);
+    }
+
+    private void publishParts(Map<String, List<Object>> added)
+    {
+        synchronized (writeLock)
+        {
+            Map<String, Contribs> contribs = new HashMap<>(snapshot.contribs);
+            for (Map.Entry<String, List<Object>> entry : added.entrySet())
+            {
+                Contribs existing = contribs.get(entry.getKey());
+                contribs.put(entry.getKey(), existing != null ? existing.plus(entry.getValue()) : new Contribs(entry.getValue()));
+            }
+
+            snapshot = new Snapshot(contribs);
+        }
+
+        // a new plugin may bring classes that were missing before
+        classes.values().removeIf(value -> value == MISSING);
+    }
+
+    /**
+     * The contributions to a single extension point. Contributions registered in lazy mode are kept as extents of
+     * their plugin's contribution index until the point is first requested.
+     *
+     * Registering a plugin adds a node that points to the previous contributions, rather than copying them, and the
+     * element list is only built when the point is requested. Registering many plugins before the first request
+     * therefore takes linear time overall.
+     */
+    private class Contribs
+    {
+        /** The contributions registered before {@link #parts}, or <code>null</code> */
+        private final Contribs previous;
+
+        /** Lists of built elements and {@link LazyExtent}s, in registration order */
+        private final List<Object> parts;
+
+        private volatile List<ContribElement> elements;
+        private volatile IContribElement[] array;
+
+        private Contribs(List<Object> parts)
+        {
+            this(null, parts);
+        }
+
+        private Contribs(Contribs previous, List<Object> parts)
+        {
+            this.previous = previous;
+            this.parts = parts;
+        }
+
+        private List<ContribElement> get()
+        {
+            List<ContribElement> result = elements;
+            if (result == null)
+            {
+                // concurrent first requests wait for a single thread to build the elements
+                synchronized (this)
+                {
+                    result = elements;
+                    if (result == null)
+                    {
+                        result = build();
+                        elements = result;
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * The elements as an array that is shared between callers of {@link #getContribElementsFor(String)}.
+         */
+        private IContribElement[] getArray()
+        {
+            IContribElement[] result = array;
+            if (result == null)
+            {
+                result = get().toArray(EMPTY);
+                array = result;
+            }
+
+            return result;
+        }
 
-        NodeList children = extension.getChildNodes();
-        for (int k = 0; k < children.getLength(); k++)
+        private List<ContribElement> build()
         {
-            Node elem = children.item(k);
-            if (elem.getNodeType() == Node.ELEMENT_NODE)
+            List<ContribElement> result = new ArrayList<>();
+            for (Object part : currentParts())
             {
-                List<ContribElement> childContribElements;
-                if (elem.hasChildNodes())
+                if (part instanceof LazyExtent lazyExtent)
                 {
-                    childContribElements = createElements(ownerURL, owner, elem);
+                    ElementBuilder builder = new ElementBuilder(lazyExtent.plugin);
+                    try
+                    {
+                        lazyExtent.table.read(lazyExtent.extent, builder);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+
+                    result.addAll(builder.extensions.getOrDefault(lazyExtent.extent.point(), Collections.emptyList()));
                 }
                 else
                 {
-                    childContribElements = Collections.emptyList();
+                    for (Object element : (List<?>) part)
+                    {
+                        result.add((ContribElement) element);
+                    }
                 }
+            }
+
+            return List.copyOf(result);
+        }
 
-                NamedNodeMap attrs = elem.getAttributes();
-                Map<String, String> attrsMap = new HashMap<>();
-                for (int i = 0; i < attrs.getLength(); i++)
+        /**
+         * All parts in registration order, starting from the most recent node whose elements have been built.
+         */
+        private List<Object> currentParts()
+        {
+            Deque<Contribs> nodes = new ArrayDeque<>();
+            Contribs node = this;
+            List<ContribElement> built = null;
+            while (node != null)
+            {
+                built = node.elements;
+                if (built != null)
                 {
-                    Node attr = attrs.item(i);
-                    attrsMap.put(attr.getNodeName(), attr.getNodeValue());
+                    break;
                 }
 
-                result.add(new ContribElement(ownerURL, owner, elem.getNodeName(), attrsMap, childContribElements));
+                nodes.push(node);
+                node = node.previous;
             }
+
+            List<Object> result = new ArrayList<>();
+            if (built != null)
+            {
+                result.add(built);
+            }
+
+            for (Contribs n : nodes)
+            {
+                result.addAll(n.parts);
+            }
+
+            return result;
         }
 
-        return result;
+        private Contribs plus(List<Object> added)
+        {
+            // don't keep older nodes reachable once their elements have been built
+            List<ContribElement> built = elements;
+            return new Contribs(built != null ? new Contribs(List.of(built)) : this, added);
+        }
+
+        /**
+         * @return The contributions without those of the given owner, <code>this</code> if the owner had none, or
+         *         <code>null</code> if no contributions remain
+         */
+        private Contribs without(String owner)
+        {
+            List<Object> remaining = new ArrayList<>();
+            boolean removed = false;
+            for (Object part : currentParts())
+            {
+                if (part instanceof LazyExtent lazyExtent)
+                {
+                    if (lazyExtent.plugin.owner.equals(owner))
+                    {
+                        removed = true;
+                    }
+                    else
+                    {
+                        remaining.add(part);
+                    }
+                }
+                else
+                {
+                    List<ContribElement> kept = new ArrayList<>();
+                    for (Object element : (List<?>) part)
+                    {
+                        if (((ContribElement) element).plugin.owner.equals(owner))
+                        {
+                            removed = true;
+                        }
+                        else
+                        {
+                            kept.add((ContribElement) element);
+                        }
+                    }
+
+                    if (!kept.isEmpty())
+                    {
+                        remaining.add(List.copyOf(kept));
+                    }
+                }
+            }
+
+            if (!removed)
+            {
+                return this;
+            }
+
+            return remaining.isEmpty() ? null : new Contribs(remaining);
+        }
     }
 
-    public void register(URL ownerURL, String owner, InputStream pluginConfig)
+    /**
+     * An extension that has been located in a contribution index but not yet read.
+     */
+    private record LazyExtent(Plugin plugin, ContribIndex.Table table, ContribIndex.Extent extent)
     {
-        try
+    }
+
+    /**
+     * Builds the {@link ContribElement} trees for the extensions of a single plugin.
+     */
+    private class ElementBuilder implements ContribHandler
+    {
+        private final Plugin plugin;
+        private final Deque<PendingElement> stack = new ArrayDeque<>();
+        private final Map<String, List<ContribElement>> extensions = new LinkedHashMap<>();
+
+        /** Attribute values of this plugin, so that repeated values share a single string */
+        private final Map<String, String> values = new HashMap<>();
+
+        private List<ContribElement> extension;
+
+        private ElementBuilder(Plugin plugin)
         {
-            DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document dom = db.parse(pluginConfig);
+            this.plugin = plugin;
+        }
+
+        @Override
+        public void startExtension(String point)
+        {
+            extension = extensions.computeIfAbsent(point, k -> new ArrayList<>());
+            stack.push(new PendingElement(null, null, new ArrayList<>()));
+        }
 
-            NodeList extensions = dom.getElementsByTagName("extension"); // .getChildNodes();
-            for (int j = 0; j < extensions.getLength(); j++)
+        @Override
+        public void startElement(String name, String[] attributes)
+        {
+            for (int i = 0; i < attributes.length; i += 2)
             {
-                Node extension = extensions.item(j);
-                Node point = extension.getAttributes().getNamedItem("point");
-                if (point == null)
+                attributes[i] = intern(attributes[i]);
+                attributes[i + 1] = values.computeIfAbsent(attributes[i + 1], k -> k);
+            }
+
+            stack.push(new PendingElement(intern(name), attributes, new ArrayList<>()));
+        }
+
+        @Override
+        public void endElement()
+        {
+            // the element is only created once all of its children are known
+            PendingElement pending = stack.pop();
+            stack.peek().children.add(new ContribElement(plugin, pending.name, pending.attrs, pending.children));
+        }
+
+        @Override
+        public void endExtension()
+        {
+            extension.addAll(stack.pop().children);
+        }
+    }
+
+    /**
+     * Element and attribute names come from a small vocabulary, so they are shared across all plugins.
+     */
+    private String intern(String name)
+    {
+        String existing = names.putIfAbsent(name, name);
+        return existing != null ? existing : name;
+    }
+
+    /**
+     * Estimate the heap retained by the registered contributions, assuming a 64 bit VM with compressed references.
+     * Extension points that have not been built yet in lazy mode are counted by the size of their index.
+     *
+     * @return The estimated size in bytes
+     */
+    public long estimateRetainedSize()
+    {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        long size = 0;
+        for (Contribs contribs : snapshot.contribs.values())
+        {
+            List<ContribElement> elements = contribs.elements;
+            if (elements != null)
+            {
+                size += sizeOfList(elements.size());
+                for (ContribElement element : elements)
+                {
+                    size += sizeOf(element, seen);
+                }
+                continue;
+            }
+
+            // not yet built, so only the contribution index is retained for the lazy parts
+            for (Object part : contribs.currentParts())
+            {
+                if (part instanceof LazyExtent lazyExtent)
+                {
+                    size += seen.add(lazyExtent.table) ? align(ARRAY_HEADER + lazyExtent.table.size()) : 0;
+                }
+                else
                 {
-                    continue;
+                    for (Object element : (List<?>) part)
+                    {
+                        size += sizeOf((ContribElement) element, seen);
+                    }
                 }
+            }
+        }
+
+        return size;
+    }
+
+    private static long sizeOf(ContribElement element, Set<Object> seen)
+    {
+        long size = align(OBJECT_HEADER + 7 * REFERENCE);
+        size += align(ARRAY_HEADER + element.attrs.length * REFERENCE);
+        for (String attr : element.attrs)
+        {
+            size += sizeOf(attr, seen);
+        }
 
-                String contribTypeId = point.getNodeValue();
+        size += sizeOf(element.name, seen);
+        if (seen.add(element.plugin))
+        {
+            size += align(OBJECT_HEADER + 2 * REFERENCE) + sizeOf(element.plugin.owner, seen);
+        }
 
-                List<ContribElement> contribElems = contribs.computeIfAbsent(contribTypeId, k -> new ArrayList<>());
-                contribElems.addAll(createElements(ownerURL, owner, extension));
+        if (!element.children.isEmpty())
+        {
+            size += align(OBJECT_HEADER + 2 * REFERENCE) + align(ARRAY_HEADER + 4L * element.children.size() * REFERENCE);
+            for (List<IContribElement> children : element.children.values())
+            {
+                size += sizeOfList(children.size());
+                for (IContribElement child : children)
+                {
+                    size += sizeOf((ContribElement) child, seen);
+                }
             }
         }
-        catch (ParserConfigurationException | SAXException | IOException e)
+
+        return size;
+    }
+
+    private static long sizeOf(String string, Set<Object> seen)
+    {
+        if (!seen.add(string))
         {
-            throw new RuntimeException(e);
+            return 0;
+        }
+
+        return align(OBJECT_HEADER + 2 * REFERENCE + 4) + align(ARRAY_HEADER + string.length());
+    }
+
+    private static long sizeOfList(int length)
+    {
+        return align(OBJECT_HEADER + REFERENCE) + align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    private static long align(long size)
+    {
+        return (size + 7) & ~7L;
+    }
+
+    private static class Snapshot
+    {
+        private final Map<String, Contribs> contribs;
+
+        /** Attribute indexes built from this snapshot by {@link #find(String, String, String, String)} */
+        private final ConcurrentMap<IndexKey, Map<String, List<IContribElement>>> indexes = new ConcurrentHashMap<>();
+
+        private Snapshot(Map<String, Contribs> contribs)
+        {
+            this.contribs = Collections.unmodifiableMap(contribs);
         }
     }
 
+    private record IndexKey(String contribTypeId, String path, String attribute)
+    {
+    }
+
+    private record PendingElement(String name, String[] attrs, List<ContribElement> children)
+    {
+    }
+
+    /**
+     * The owner of a set of contributions, shared by all elements of a plugin.
+     */
+    private record Plugin(URL ownerURL, String owner)
+    {
+    }
+
     private class ContribElement implements IContribElement
     {
-        private final Map<String, String> attrs;
+        private final Plugin plugin;
         private final String name;
-        private final String owner;
-        private final URL ownerURL;
-        private final List<ContribElement> children;
 
-        private ContribElement(URL ownerURL, String owner, String name, Map<String, String> attrs, List<ContribElement> children)
+        /** Attributes as alternating name and value entries, which is far smaller than a map for a handful of entries */
+        private final String[] attrs;
+
+        /** Children grouped by element name, shared by all callers of {@link #getChildElements(String)} */
+        private final Map<String, List<IContribElement>> children;
+
+        /**
+         * Singleton instances by attribute name, only allocated once a singleton has been requested. Each singleton
+         * is created outside the element lock, and concurrent callers wait on its future.
+         */
+        private volatile ConcurrentMap<String, CompletableFuture<Object>> singletons;
+
+        /** Idle pooled instances by attribute name, guarded by this element */
+        private Map<String, Deque<Object>> pools;
+
+        /** Pooled instances that have been handed out and not yet released, guarded by this element */
+        private Set<Object> borrowed;
+
+        private ContribElement(Plugin plugin, String name, String[] attrs, List<ContribElement> children)
         {
-            this.ownerURL = ownerURL;
-            this.owner = owner;
+            this.plugin = plugin;
             this.name = name;
             this.attrs = attrs;
-            this.children = children;
+            this.children = indexChildren(children);
+        }
+
+        private Map<String, List<IContribElement>> indexChildren(List<ContribElement> elements)
+        {
+            if (elements.isEmpty())
+            {
+                return Collections.emptyMap();
+            }
+
+            Map<String, List<IContribElement>> byName = new HashMap<>();
+            for (ContribElement element : elements)
+            {
+                byName.computeIfAbsent(element.name, k -> new ArrayList<>()).add(element);
+            }
+
+            byName.replaceAll((k, v) -> List.copyOf(v));
+            return Map.copyOf(byName);
         }
 
         @Override
         public URL getOwnerURL()
         {
-            return ownerURL;
+            return plugin.ownerURL;
         }
 
         @Override
         public String getOwner()
         {
-            return owner;
+            return plugin.owner;
         }
 
         @Override
         public String getAttribute(String name)
         {
-            return attrs.get(name);
+            for (int i = 0; i < attrs.length; i += 2)
+            {
+                if (attrs[i].equals(name))
+                {
+                    return attrs[i + 1];
+                }
+            }
+
+            return null;
         }
 
-        @SuppressWarnings("unchecked")
         @Override
         public <T> T createInstance(String name) throws ContribException
+        {
+            String scope = getAttribute("scope");
+            if (scope == null)
+            {
+                return createInstance(name, ContribScope.PROTOTYPE);
+            }
+
+            try
+            {
+                return createInstance(name, ContribScope.valueOf(scope.toUpperCase(Locale.ROOT)));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ContribException("Unknown scope: " + scope);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T createInstance(String name, ContribScope scope) throws ContribException
+        {
+            switch (scope)
+            {
+            case SINGLETON:
+                return (T) getSingleton(name);
+
+            case POOLED:
+                return (T) borrowInstance(name);
+
+            default:
+                return newInstance(name);
+            }
+        }
+
+        private Object getSingleton(String name) throws ContribException
+        {
+            ConcurrentMap<String, CompletableFuture<Object>> instances = singletons;
+            CompletableFuture<Object> future = instances != null ? instances.get(name) : null;
+            if (future == null)
+            {
+                CompletableFuture<Object> created = new CompletableFuture<>();
+                synchronized (this)
+                {
+                    if (singletons == null)
+                    {
+                        singletons = new ConcurrentHashMap<>();
+                        scopedElements.add(this);
+                    }
+
+                    instances = singletons;
+                    future = instances.putIfAbsent(name, created);
+                }
+
+                if (future == null)
+                {
+                    try
+                    {
+                        Object instance = newInstance(name);
+                        created.complete(instance);
+                        return instance;
+                    }
+                    catch (ContribException | RuntimeException e)
+                    {
+                        instances.remove(name, created);
+                        created.completeExceptionally(e);
+                        throw e;
+                    }
+                }
+            }
+
+            try
+            {
+                return future.join();
+            }
+            catch (CompletionException e)
+            {
+                throw new ContribException(e.getCause());
+            }
+        }
+
+        private Object created(CompletableFuture<Object> singleton)
+        {
+            return singleton.state() == Future.State.SUCCESS ? singleton.resultNow() : null;
+        }
+
+        private Object borrowInstance(String name) throws ContribException
+        {
+            synchronized (this)
+            {
+                Deque<Object> idle = pools != null ? pools.get(name) : null;
+                if (idle != null && !idle.isEmpty())
+                {
+                    Object instance = idle.pop();
+                    borrowed.add(instance);
+                    return instance;
+                }
+            }
+
+            Object instance = newInstance(name);
+            synchronized (this)
+            {
+                if (pools == null)
+                {
+                    pools = new HashMap<>();
+                    borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+                    scopedElements.add(this);
+                }
+
+                borrowed.add(instance);
+            }
+
+            return instance;
+        }
+
+        @Override
+        public void releaseInstance(String name, Object instance)
+        {
+            ConcurrentMap<String, CompletableFuture<Object>> instances = singletons;
+            CompletableFuture<Object> singleton = instances != null ? instances.get(name) : null;
+            if (singleton != null && created(singleton) == instance)
+            {
+                return;
+            }
+
+            synchronized (this)
+            {
+                // only instances handed out by the pool go back into it, anything else is destroyed
+                if (borrowed != null && borrowed.remove(instance))
+                {
+                    Deque<Object> idle = pools.computeIfAbsent(name, k -> new ArrayDeque<>());
+                    if (idle.size() < getPoolSize())
+                    {
+                        idle.push(instance);
+                        return;
+                    }
+                }
+            }
+
+            destroyInstance(instance);
+        }
+
+        private int getPoolSize()
+        {
+            String poolSize = getAttribute("poolSize");
+            try
+            {
+                return poolSize != null ? Integer.parseInt(poolSize) : DEFAULT_POOL_SIZE;
+            }
+            catch (NumberFormatException e)
+            {
+                LOGGER.warn("Invalid poolSize for {}: {}", this, poolSize);
+                return DEFAULT_POOL_SIZE;
+            }
+        }
+
+        /**
+         * Destroy the singleton and idle pooled instances of this element.
+         */
+        private void destroyInstances()
+        {
+            List<Object> instances = new ArrayList<>();
+            synchronized (this)
+            {
+                if (singletons != null)
+                {
+                    for (CompletableFuture<Object> singleton : singletons.values())
+                    {
+                        Object instance = created(singleton);
+                        if (instance != null)
+                        {
+                            instances.add(instance);
+                        }
+                    }
+                    singletons = null;
+                }
+
+                if (pools != null)
+                {
+                    pools.values().forEach(instances::addAll);
+                    pools = null;
+                    borrowed = null;
+                }
+            }
+
+            instances.forEach(ContribRegistry::destroyInstance);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T newInstance(String name) throws ContribException
         {
             try
             {
-                T instance = (T) createClass(name).newInstance();
+                T instance = (T) InjectionElf.newInstance(createClass(name));
                 InjectionElf.injectResources(instance);
                 InjectionElf.invokeMethodsWithAnnotation(PostConstruct.class, instance);
                 return instance;
             }
-            catch (InstantiationException | IllegalAccessException | InvocationTargetException | NamingException e)
+            catch (ReflectiveOperationException | NamingException e)
             {
                 throw new ContribException(e);
             }
@@ -215,7 +1221,7 @@ public class ContribRegistry implements IContribRegistry
 
             try
             {
-                return (Class<T>) classLoader.loadClass(classname);
+                return (Class<T>) loadClass(classname, false);
             }
             catch (ClassNotFoundException e)
             {
@@ -232,9 +1238,13 @@ public class ContribRegistry implements IContribRegistry
         @Override
         public IContribElement[] getChildren(String string)
         {
-            return children.stream()
-                    .filter((it) -> it.name.equals(string))
-                    .toArray(IContribElement[]::new);
+            return getChildElements(string).toArray(EMPTY);
+        }
+
+        @Override
+        public List<IContribElement> getChildElements(String string)
+        {
+            return children.getOrDefault(string, Collections.emptyList());
         }
 
         @Override
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+/**
+ * How instances created by {@link IContribElement#createInstance(String, ContribScope)} are reused. The scope of an
+ * element can also be declared in the plugin.xml with the <code>scope</code> attribute, for example
+ * <code>&lt;listener class="..." scope="singleton"/&gt;</code>.
+ */
+public enum ContribScope
+{
+    /** A new instance is created for every call */
+    PROTOTYPE,
+
+    /** A single instance is created per element and attribute, and destroyed when the registry is closed */
+    SINGLETON,
+
+    /**
+     * Instances are handed out from a pool and returned with {@link IContribElement#releaseInstance(String, Object)}.
+     * The <code>poolSize</code> attribute caps the number of idle instances kept for reuse; it does not limit how many
+     * instances are handed out at once.
+     */
+    POOLED
+}
@@ -16,6 +16,9 @@
 package com.lbayer.appup.registry;
 
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public interface IContribElement
 {
@@ -24,7 +27,49 @@ public interface IContribElement
 
     String getAttribute(String name);
     <T> T createInstance(String name) throws ContribException;
+
+    /**
+     * Create an instance of the class named by the given attribute, reusing instances according to the scope.
+     *
+     * @param name The attribute that holds the class name
+     * @param scope How instances are reused
+     * @param <T> The instance type
+     * @return The instance
+     * @throws ContribException If the instance could not be created, or the element does not support the scope
+     */
+    default <T> T createInstance(String name, ContribScope scope) throws ContribException
+    {
+        if (scope != ContribScope.PROTOTYPE)
+        {
+            throw new ContribException("Scope " + scope + " is not supported by " + getClass().getName());
+        }
+
+        return createInstance(name);
+    }
+
+    /**
+     * Return an instance obtained with the {@link ContribScope#POOLED} scope to its pool. Instances that do not fit in
+     * the pool, and instances that did not come from the pool, are destroyed. Singletons are left alone.
+     *
+     * @param name The attribute the instance was created for
+     * @param instance The instance
+     */
+    default void releaseInstance(String name, Object instance)
+    {
+    }
+
     <T> Class<T> createClass(String name) throws ContribException;
     String getName();
     IContribElement[] getChildren(String string);
+
+    /**
+     * Get the child elements with the given name without copying them.
+     *
+     * @param name The element name
+     * @return An unmodifiable list of the children, which may be shared between callers
+     */
+    default List<IContribElement> getChildElements(String name)
+    {
+        return Collections.unmodifiableList(Arrays.asList(getChildren(name)));
+    }
 }
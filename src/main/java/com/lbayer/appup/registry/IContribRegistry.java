@@ -15,7 +15,44 @@
  */
 package com.lbayer.appup.registry;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public interface IContribRegistry
 {
+    /**
+     * Get the contributions for an extension point.
+     *
+     * @param contribTypeId The extension point id
+     * @return The contributions. Implementations may share the array between callers, so it must not be modified.
+     */
     IContribElement[] getContribElementsFor(String contribTypeId);
+
+    /**
+     * Get the contributions for an extension point without copying them.
+     *
+     * @param contribTypeId The extension point id
+     * @return An unmodifiable list of the contributions, which may be shared between callers
+     */
+    default List<IContribElement> getContribElements(String contribTypeId)
+    {
+        return Collections.unmodifiableList(Arrays.asList(getContribElementsFor(contribTypeId)));
+    }
+
+    /**
+     * Find the contributions at the given path of an extension point whose attribute has the given value. For example
+     * <code>find("nested", "top/middle", "value", "middle-value")</code>.
+     *
+     * @param contribTypeId The extension point id
+     * @param path Slash separated element names, starting with the name of the top level contribution element
+     * @param attribute The attribute name
+     * @param value The attribute value, which must not be <code>null</code>
+     * @return An unmodifiable list of the matching elements, in document order
+     * @throws NullPointerException If the value is <code>null</code>
+     */
+    default List<IContribElement> find(String contribTypeId, String path, String attribute, String value)
+    {
+        return ContribQuery.find(getContribElements(contribTypeId), path, attribute, value);
+    }
 }
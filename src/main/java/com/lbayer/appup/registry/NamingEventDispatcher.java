@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.naming.Binding;
+import javax.naming.event.EventContext;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingListener;
+import javax.naming.event.ObjectChangeListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the naming events of an {@link AppupContext} to its listeners.
+ *
+ * Each listener has its own queue of events, which is drained on the configured executor, so listeners are never
+ * called while a lock is held and a slow listener does not hold up binding or other listeners. A listener always
+ * receives its events in the order they were fired, and is never called by two threads at once.
+ *
+ * By default the queue is drained on the thread that fired the event, so a bind returns after its listeners have
+ * run. The exception is a listener that another thread is already delivering events to: that thread also delivers
+ * the new event, after the ones queued before it, and the bind returns without waiting for it.
+ *
+ * Listeners are kept in a trie of the '/' separated name components, so the listeners of a name are found in time
+ * proportional to its depth, for any of the {@link EventContext} scopes.
+ *
+ * When coalescing is enabled, consecutive queued events for the same name are delivered as a single event going
+ * from the first old binding to the last new binding.
+ */
+final class NamingEventDispatcher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(NamingEventDispatcher.class);
+
+    private static final Target[] NO_TARGETS = new Target[0];
+
+    private final EventContext source;
+
+    /** The node of the empty name, which is the parent of all top level names */
+    private final Node root = new Node();
+
+    /** The queue of each listener, guarded by <code>this</code> */
+    private final Map<NamingListener, ListenerQueue> queues = new IdentityHashMap<>();
+
+    private volatile Executor executor = Runnable::run;
+    private volatile boolean coalesce;
+
+    NamingEventDispatcher(EventContext source)
+    {
+        this.source = source;
+    }
+
+    void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    void setCoalesce(boolean coalesce)
+    {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Add a listener.
+     *
+     * @param target The name to listen to
+     * @param scope One of the {@link EventContext} scopes: the target itself, its direct children, or the target and
+     *            all names below it
+     * @param listener The listener
+     */
+    synchronized void addListener(String target, int scope, ObjectChangeListener listener)
+    {
+        if (scope != EventContext.OBJECT_SCOPE && scope != EventContext.ONELEVEL_SCOPE && scope != EventContext.SUBTREE_SCOPE)
+        {
+            throw new IllegalArgumentException("Invalid scope: " + scope);
+        }
+
+        Node node = root;
+        if (!target.isEmpty())
+        {
+            for (String component : target.split("/", -1))
+            {
+                node = node.children.computeIfAbsent(component, k -> new Node());
+            }
+        }
+
+        ListenerQueue queue = queues.computeIfAbsent(listener, k -> new ListenerQueue(listener));
+
+        Target[] result = Arrays.copyOf(node.targets, node.targets.length + 1);
+        result[node.targets.length] = new Target(queue, scope);
+        node.targets = result;
+    }
+
+    /**
+     * Remove a listener from all of its targets. Events that are already queued are still delivered.
+     */
+    synchronized void removeListener(NamingListener listener)
+    {
+        ListenerQueue queue = queues.remove(listener);
+        if (queue == null)
+        {
+            return;
+        }
+
+        remove(root, queue);
+    }
+
+    /**
+     * Remove a listener from a node and the nodes below it, and prune the nodes that are left empty.
+     *
+     * @return Whether the node is empty
+     */
+    private static boolean remove(Node node, ListenerQueue queue)
+    {
+        node.targets = Arrays.stream(node.targets).filter(t -> t.queue != queue).toArray(Target[]::new);
+        node.children.values().removeIf(child -> remove(child, queue));
+        return node.targets.length == 0 && node.children.isEmpty();
+    }
+
+    void fire(String name, int type, Binding newBinding, Binding oldBinding)
+    {
+        NamingEvent event = null;
+
+        // walk down the nodes of the name, from the root to the node of the name itself
+        Node node = root;
+        int start = 0;
+        boolean named = name.isEmpty();
+        while (true)
+        {
+            int end = named ? -1 : name.indexOf('/', start);
+
+            // the number of components between this node and the name: none, one, or more. These match the values of
+            // OBJECT_SCOPE and ONELEVEL_SCOPE, while SUBTREE_SCOPE matches at any distance.
+            int distance = named ? 0 : end < 0 ? 1 : 2;
+            for (Target target : node.targets)
+            {
+                if (target.scope == EventContext.SUBTREE_SCOPE || target.scope == distance)
+                {
+                    if (event == null)
+                    {
+                        event = new NamingEvent(source, type, newBinding, oldBinding, null);
+                    }
+
+                    target.queue.add(event);
+                }
+            }
+
+            if (named)
+            {
+                return;
+            }
+
+            node = node.children.get(end < 0 ? name.substring(start) : name.substring(start, end));
+            if (node == null)
+            {
+                return;
+            }
+
+            named = end < 0;
+            start = end + 1;
+        }
+    }
+
+    private static String getName(NamingEvent event)
+    {
+        Binding binding = event.getNewBinding() != null ? event.getNewBinding() : event.getOldBinding();
+        return binding.getName();
+    }
+
+    /**
+     * A name component in the listener trie.
+     */
+    private static final class Node
+    {
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+
+        /** The listeners of this name, replaced as a whole on change so that firing never needs a lock */
+        private volatile Target[] targets = NO_TARGETS;
+    }
+
+    private record Target(ListenerQueue queue, int scope)
+    {
+    }
+
+    private final class ListenerQueue implements Runnable
+    {
+        private final ObjectChangeListener listener;
+        private final Queue<NamingEvent> events = new ConcurrentLinkedQueue<>();
+
+        /** Whether a drain of this queue is scheduled or running, so that only one thread delivers events at a time */
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        private ListenerQueue(ObjectChangeListener listener)
+        {
+            this.listener = listener;
+        }
+
+        void add(NamingEvent event)
+        {
+            events.add(event);
+            if (draining.compareAndSet(false, true))
+            {
+                try
+                {
+                    executor.execute(this);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    draining.set(false);
+                    LOGGER.warn("Naming events not delivered to listener: {}", listener, e);
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            do
+            {
+                NamingEvent event;
+                while ((event = events.poll()) != null)
+                {
+                    if (coalesce)
+                    {
+                        event = coalesce(event);
+                    }
+
+                    if (event != null)
+                    {
+                        deliver(event);
+                    }
+                }
+
+                draining.set(false);
+
+                // an event may have been added after the last poll but before the flag was cleared
+            } while (!events.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        /**
+         * Merge the queued events that directly follow the given event and have the same name.
+         *
+         * @return The merged event, or <code>null</code> if the events cancel each other out
+         */
+        private NamingEvent coalesce(NamingEvent first)
+        {
+            String name = getName(first);
+            Binding newBinding = first.getNewBinding();
+
+            int merged = 0;
+            NamingEvent next;
+            while ((next = events.peek()) != null && getName(next).equals(name))
+            {
+                events.poll();
+                newBinding = next.getNewBinding();
+                merged++;
+            }
+
+            if (merged == 0)
+            {
+                return first;
+            }
+
+            Binding oldBinding = first.getOldBinding();
+            if (oldBinding == null && newBinding == null)
+            {
+                return null;
+            }
+
+            int type = oldBinding == null ? NamingEvent.OBJECT_ADDED : newBinding == null ? NamingEvent.OBJECT_REMOVED : NamingEvent.OBJECT_CHANGED;
+            return new NamingEvent(source, type, newBinding, oldBinding, null);
+        }
+
+        private void deliver(NamingEvent event)
+        {
+            try
+            {
+                listener.objectChanged(event);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.warn("Error in naming listener: {}", listener, e);
+            }
+        }
+    }
+}
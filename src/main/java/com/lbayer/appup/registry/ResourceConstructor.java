@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.annotation.Resource;
+
+/**
+ * Marks the public constructor that creates lifecycle classes, services and contribution instances. Each parameter is
+ * looked up the same way as a {@link Resource} of the parameter type, before the constructor is called, so the
+ * dependencies can be kept in final fields. For example:
+ *
+ * <pre>
+ * &#64;ResourceConstructor
+ * public Service(ICache cache, ServiceRef&lt;IStore&gt; store)
+ * </pre>
+ *
+ * Resources in fields and methods are still injected after the constructor returns.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.CONSTRUCTOR)
+public @interface ResourceConstructor
+{
+    /**
+     * The resource names of the parameters, in order. A missing or empty name looks up the parameter type.
+     */
+    String[] names() default {};
+}
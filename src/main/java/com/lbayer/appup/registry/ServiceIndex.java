@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.module.ModuleDescriptor;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>META-INF/services</code> provider configurations of a class loader, read in a single pass over its class
+ * path so that a service lookup does not need a {@link ServiceLoader} scan of every jar.
+ *
+ * The index can only be built for class loaders whose class path is known, which are the system class loader and
+ * {@link URLClassLoader}s with file URLs. Services that are provided by named modules are left to the
+ * {@link ServiceLoader}, since their providers can't be instantiated directly.
+ *
+ * The entries of each jar can be cached in a file, and are used while the size and modification time of the jar match.
+ */
+final class ServiceIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceIndex.class);
+
+    private static final String SERVICES = "META-INF/services/";
+
+    private static final int MAGIC = 0x41505053;
+    private static final int VERSION = 1;
+
+    /** The provider class names of each service, in class path order, or <code>null</code> if the class path is not known */
+    private final Map<String, List<String>> providers;
+
+    /** Services with providers in named modules */
+    private final Set<String> moduleServices;
+
+    private ServiceIndex(Map<String, List<String>> providers, Set<String> moduleServices)
+    {
+        this.providers = providers;
+        this.moduleServices = moduleServices;
+    }
+
+    /**
+     * Get the providers of a service.
+     *
+     * @param service The service class name
+     * @return The provider class names, which is empty if there are none, or <code>null</code> if the service has to
+     *         be loaded with a {@link ServiceLoader}
+     */
+    List<String> getProviders(String service)
+    {
+        if (providers == null || moduleServices.contains(service))
+        {
+            return null;
+        }
+
+        return providers.getOrDefault(service, List.of());
+    }
+
+    /**
+     * Build the index of a class loader.
+     *
+     * @param classLoader The class loader
+     * @param cacheFile The file that caches the entries of each jar, or <code>null</code>
+     */
+    static ServiceIndex build(ClassLoader classLoader, File cacheFile)
+    {
+        List<File> classPath = getClassPath(classLoader);
+        if (classPath == null)
+        {
+            LOGGER.debug("Class path of {} is not known, services are loaded with the ServiceLoader", classLoader);
+            return new ServiceIndex(null, Set.of());
+        }
+
+        Map<String, JarEntries> cached = cacheFile != null ? readCache(cacheFile) : Map.of();
+        Map<String, JarEntries> jars = new LinkedHashMap<>();
+
+        Map<String, Set<String>> found = new LinkedHashMap<>();
+        Set<File> visited = new HashSet<>();
+        for (int i = 0; i < classPath.size(); i++)
+        {
+            File root = classPath.get(i);
+            if (!visited.add(root))
+            {
+                continue;
+            }
+
+            try
+            {
+                if (root.isDirectory())
+                {
+                    readDirectory(root, found);
+                }
+                else if (root.isFile())
+                {
+                    JarEntries entries = cached.get(root.getPath());
+                    if (entries == null || entries.size != root.length() || entries.lastModified != root.lastModified())
+                    {
+                        entries = readJar(root);
+                    }
+
+                    jars.put(root.getPath(), entries);
+                    entries.providers.forEach((service, names) -> found.computeIfAbsent(service, k -> new LinkedHashSet<>()).addAll(names));
+
+                    // jars on the manifest class path are loaded by the same class loader, and are URLs relative to the jar
+                    for (String entry : entries.classPath)
+                    {
+                        try
+                        {
+                            classPath.add(new File(root.toURI().resolve(entry)));
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            LOGGER.debug("Ignoring manifest class path entry {} of {}", entry, root);
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Unable to index services of {}, services are loaded with the ServiceLoader", root, e);
+                return new ServiceIndex(null, Set.of());
+            }
+        }
+
+        if (cacheFile != null)
+        {
+            // the cache is shared by the indexes of all class loaders, so the jars of other class loaders are kept
+            Map<String, JarEntries> entries = new LinkedHashMap<>(cached);
+            entries.putAll(jars);
+            entries.keySet().removeIf(path -> !new File(path).isFile());
+            if (!entries.equals(cached))
+            {
+                writeCache(cacheFile, entries);
+            }
+        }
+
+        Map<String, List<String>> providers = new HashMap<>();
+        found.forEach((service, names) -> providers.put(service, List.copyOf(names)));
+
+        Set<String> moduleServices = new HashSet<>();
+        for (Module module : ModuleLayer.boot().modules())
+        {
+            for (ModuleDescriptor.Provides provides : module.getDescriptor().provides())
+            {
+                moduleServices.add(provides.service());
+            }
+        }
+
+        LOGGER.debug("Indexed {} services from {} class path entries", providers.size(), visited.size());
+        return new ServiceIndex(providers, moduleServices);
+    }
+
+    /**
+     * Get the class path of a class loader and its parents, parents first.
+     */
+    private static List<File> getClassPath(ClassLoader classLoader)
+    {
+        List<ClassLoader> loaders = new ArrayList<>();
+        for (ClassLoader loader = classLoader; loader != null && loader != ClassLoader.getPlatformClassLoader(); loader = loader.getParent())
+        {
+            loaders.addFirst(loader);
+        }
+
+        List<File> classPath = new ArrayList<>();
+        for (ClassLoader loader : loaders)
+        {
+            if (loader instanceof URLClassLoader)
+            {
+                for (URL url : ((URLClassLoader) loader).getURLs())
+                {
+                    if (!url.getProtocol().equals("file"))
+                    {
+                        return null;
+                    }
+
+                    try
+                    {
+                        classPath.add(new File(url.toURI()));
+                    }
+                    catch (URISyntaxException | IllegalArgumentException e)
+                    {
+                        return null;
+                    }
+                }
+            }
+            else if (loader == ClassLoader.getSystemClassLoader())
+            {
+                for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator))
+                {
+                    if (!entry.isEmpty())
+                    {
+                        classPath.add(new File(entry));
+                    }
+                }
+            }
+            else
+            {
+                return null;
+            }
+        }
+
+        return classPath;
+    }
+
+    private static void readDirectory(File root, Map<String, Set<String>> found) throws IOException
+    {
+        File[] files = new File(root, SERVICES).listFiles(File::isFile);
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                try (InputStream in = Files.newInputStream(file.toPath()))
+                {
+                    readProviders(in, found.computeIfAbsent(file.getName(), k -> new LinkedHashSet<>()));
+                }
+            }
+        }
+    }
+
+    private static JarEntries readJar(File file) throws IOException
+    {
+        Map<String, Set<String>> found = new LinkedHashMap<>();
+        List<String> classPath = new ArrayList<>();
+        try (JarFile jar = new JarFile(file))
+        {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements())
+            {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!entry.isDirectory() && name.startsWith(SERVICES) && name.indexOf('/', SERVICES.length()) < 0)
+                {
+                    try (InputStream in = jar.getInputStream(entry))
+                    {
+                        readProviders(in, found.computeIfAbsent(name.substring(SERVICES.length()), k -> new LinkedHashSet<>()));
+                    }
+                }
+            }
+
+            Manifest manifest = jar.getManifest();
+            String manifestClassPath = manifest != null ? manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) : null;
+            if (manifestClassPath != null)
+            {
+                for (String entry : manifestClassPath.trim().split("\\s+"))
+                {
+                    classPath.add(entry);
+                }
+            }
+        }
+
+        Map<String, List<String>> providers = new LinkedHashMap<>();
+        found.forEach((service, names) -> providers.put(service, List.copyOf(names)));
+        return new JarEntries(file.length(), file.lastModified(), providers, classPath);
+    }
+
+    /**
+     * Read a provider configuration file, in the format described by {@link ServiceLoader}.
+     */
+    private static void readProviders(InputStream in, Set<String> names) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+            {
+                line = line.substring(0, comment);
+            }
+
+            line = line.trim();
+            if (!line.isEmpty())
+            {
+                names.add(line);
+            }
+        }
+    }
+
+    private static Map<String, JarEntries> readCache(File file)
+    {
+        Map<String, JarEntries> jars = new HashMap<>();
+        if (file.isFile())
+        {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath())))
+            {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION)
+                {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++)
+                    {
+                        String path = in.readUTF();
+                        long size = in.readLong();
+                        long lastModified = in.readLong();
+
+                        Map<String, List<String>> providers = new LinkedHashMap<>();
+                        int services = in.readInt();
+                        for (int j = 0; j < services; j++)
+                        {
+                            providers.put(in.readUTF(), readStrings(in));
+                        }
+
+                        jars.put(path, new JarEntries(size, lastModified, providers, readStrings(in)));
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Ignoring unreadable service index cache: {}", file, e);
+                jars.clear();
+            }
+        }
+
+        return jars;
+    }
+
+    private static void writeCache(File file, Map<String, JarEntries> jars)
+    {
+        try
+        {
+            Path parent = file.toPath().toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+
+            Path tmp = Files.createTempFile(parent, file.getName(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(jars.size());
+                for (Map.Entry<String, JarEntries> jar : jars.entrySet())
+                {
+                    out.writeUTF(jar.getKey());
+                    out.writeLong(jar.getValue().size);
+                    out.writeLong(jar.getValue().lastModified);
+                    out.writeInt(jar.getValue().providers.size());
+                    for (Map.Entry<String, List<String>> service : jar.getValue().providers.entrySet())
+                    {
+                        out.writeUTF(service.getKey());
+                        writeStrings(out, service.getValue());
+                    }
+
+                    writeStrings(out, jar.getValue().classPath);
+                }
+            }
+
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Unable to write service index cache: {}", file, e);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException
+    {
+        List<String> strings = new ArrayList<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            strings.add(in.readUTF());
+        }
+
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException
+    {
+        out.writeInt(strings.size());
+        for (String string : strings)
+        {
+            out.writeUTF(string);
+        }
+    }
+
+    /**
+     * The service providers and manifest class path of a jar.
+     */
+    private record JarEntries(long size, long lastModified, Map<String, List<String>> providers, List<String> classPath)
+    {
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import javax.annotation.Resource;
+import javax.naming.NamingException;
+
+/**
+ * A reference to whatever service is currently bound to a name. The reference is updated when the name is bound,
+ * rebound or unbound, so a service can be swapped with {@link javax.naming.Context#rebind(String, Object)} without
+ * the holders of the reference noticing.
+ *
+ * A field or method parameter of this type that is annotated with {@link Resource} is injected with the reference to
+ * the name of the {@link Resource} or, if that is not set, to the name of the type argument. For example:
+ *
+ * <pre>
+ * &#64;Resource
+ * private ServiceRef&lt;ICache&gt; cache;
+ * </pre>
+ *
+ * Unlike a service field, the service is only looked up when it is first used, so references can also be used to
+ * break a dependency cycle.
+ *
+ * @param <T> The service type
+ */
+public final class ServiceRef<T>
+{
+    private final AppupContext context;
+    private final String name;
+
+    /** The current first binding of the name, maintained by the context */
+    volatile Object value;
+
+    ServiceRef(AppupContext context, String name)
+    {
+        this.context = context;
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Get the service that is currently bound. If nothing is bound, the service is looked up, which creates it if
+     * possible.
+     *
+     * @return The service
+     * @throws IllegalStateException If the service can not be found or created
+     */
+    @SuppressWarnings("unchecked")
+    public T get()
+    {
+        Object current = value;
+        if (current == null)
+        {
+            try
+            {
+                current = context.lookup(name);
+            }
+            catch (NamingException e)
+            {
+                throw new IllegalStateException("Service not available: " + name, e);
+            }
+        }
+
+        return (T) current;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServiceRef(" + name + ")";
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Resource;
+import javax.naming.ConfigurationException;
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.lbayer.appup.internal.InjectionElf.getResourceNames;
+
+/**
+ * Creates the services that a set of root classes depend on ahead of their first lookup.
+ *
+ * The {@link Resource} dependencies of the roots are followed to build a dependency graph, which is checked for
+ * cycles before anything is created. Services are then created in waves, where each service only depends on services
+ * of earlier waves, so that all services of a wave can be created in parallel.
+ */
+final class ServiceWarmup
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceWarmup.class);
+
+    private final AppupContext context;
+    private final ClassLoader classLoader;
+
+    /** The dependencies of each service, in the order they were found */
+    private final Map<String, List<String>> graph = new LinkedHashMap<>();
+
+    /** The services in the graph that can be created, rather than only bound by the application */
+    private final Set<String> creatable = new HashSet<>();
+
+    ServiceWarmup(AppupContext context, ClassLoader classLoader)
+    {
+        this.context = context;
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Add a root to the graph. A root that is a service itself is created along with its dependencies, any other
+     * class (such as a lifecycle class) only has its dependencies created.
+     */
+    void addRoot(Class<?> root)
+    {
+        if (!getImplementations(root.getName()).isEmpty())
+        {
+            addService(root.getName());
+        }
+        else
+        {
+            for (String dependency : getResourceNames(root))
+            {
+                addService(dependency);
+            }
+        }
+    }
+
+    private void addService(String name)
+    {
+        if (graph.containsKey(name))
+        {
+            return;
+        }
+
+        List<String> dependencies = new ArrayList<>();
+        graph.put(name, dependencies);
+
+        if (context.isBound(name))
+        {
+            return;
+        }
+
+        List<Class<?>> implementations = getImplementations(name);
+        if (!implementations.isEmpty())
+        {
+            creatable.add(name);
+        }
+
+        for (Class<?> implementation : implementations)
+        {
+            for (String dependency : getResourceNames(implementation))
+            {
+                if (!dependencies.contains(dependency))
+                {
+                    dependencies.add(dependency);
+                }
+            }
+        }
+
+        for (String dependency : dependencies)
+        {
+            addService(dependency);
+        }
+    }
+
+    /**
+     * Get the classes that a lookup of the given name would instantiate, the same way {@link AppupContext} resolves them.
+     */
+    private List<Class<?>> getImplementations(String name)
+    {
+        try
+        {
+            Class<?> clazz = Class.forName(name, false, classLoader);
+
+            List<Class<?>> providers = new ArrayList<>();
+            List<String> names = context.getServiceProviders(name, classLoader);
+            if (names == null)
+            {
+                ServiceLoader.load(clazz, classLoader).stream().forEach(provider -> providers.add(provider.type()));
+            }
+            else
+            {
+                for (String provider : names)
+                {
+                    providers.add(Class.forName(provider, false, classLoader));
+                }
+            }
+
+            if (!providers.isEmpty())
+            {
+                return providers;
+            }
+
+            if (!clazz.isInterface() && clazz.isAnnotationPresent(Resource.class))
+            {
+                return List.of(clazz);
+            }
+        }
+        catch (ClassNotFoundException | LinkageError | ServiceConfigurationError e)
+        {
+            // left to the lookup to report
+            LOGGER.debug("Not warming up service: {}", name, e);
+        }
+
+        return List.of();
+    }
+
+    /**
+     * Check the graph for dependency cycles and create its services.
+     *
+     * @param executor The executor that creates the services of each wave
+     * @throws NamingException If the graph has a cycle or a service could not be created
+     */
+    void run(Executor executor) throws NamingException
+    {
+        Set<String> visited = new HashSet<>();
+        for (String name : graph.keySet())
+        {
+            checkCycles(name, visited, new LinkedHashSet<>());
+        }
+
+        List<List<String>> waves = getWaves();
+        for (int i = 0; i < waves.size(); i++)
+        {
+            List<String> wave = waves.get(i);
+            LOGGER.debug("Warming up {} services in wave {}", wave.size(), i);
+
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (String name : wave)
+            {
+                futures.add(CompletableFuture.runAsync(() -> create(name), executor));
+            }
+
+            ConfigurationException failure = null;
+            for (CompletableFuture<Void> future : futures)
+            {
+                try
+                {
+                    future.join();
+                }
+                catch (CompletionException e)
+                {
+                    if (failure == null)
+                    {
+                        failure = new ConfigurationException("Unable to warm up services");
+                        failure.setRootCause(e.getCause());
+                    }
+                    else
+                    {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+
+            if (failure != null)
+            {
+                throw failure;
+            }
+        }
+    }
+
+    private void checkCycles(String name, Set<String> visited, LinkedHashSet<String> path) throws ConfigurationException
+    {
+        if (visited.contains(name))
+        {
+            return;
+        }
+
+        if (!path.add(name))
+        {
+            List<String> cycle = new ArrayList<>(path);
+            cycle = cycle.subList(cycle.indexOf(name), cycle.size());
+            throw new ConfigurationException("Resource dependency cycle detected for object: " + name + "\n"
+                                                     + String.join("->", cycle) + "->" + name);
+        }
+
+        for (String dependency : graph.get(name))
+        {
+            checkCycles(dependency, visited, path);
+        }
+
+        path.remove(name);
+        visited.add(name);
+    }
+
+    /**
+     * Group the creatable services by the length of their longest dependency chain.
+     */
+    private List<List<String>> getWaves()
+    {
+        Map<String, Integer> levels = new HashMap<>();
+        List<List<String>> waves = new ArrayList<>();
+        for (String name : graph.keySet())
+        {
+            if (creatable.contains(name))
+            {
+                int level = getLevel(name, levels);
+                while (waves.size() <= level)
+                {
+                    waves.add(new ArrayList<>());
+                }
+
+                waves.get(level).add(name);
+            }
+        }
+
+        waves.removeIf(List::isEmpty);
+        return waves;
+    }
+
+    private int getLevel(String name, Map<String, Integer> levels)
+    {
+        Integer level = levels.get(name);
+        if (level == null)
+        {
+            level = 0;
+            for (String dependency : graph.get(name))
+            {
+                level = Math.max(level, getLevel(dependency, levels) + 1);
+            }
+
+            levels.put(name, level);
+        }
+
+        return level;
+    }
+
+    private void create(String name)
+    {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+        try
+        {
+            context.lookup(name);
+        }
+        catch (NamingException e)
+        {
+            throw new CompletionException(e);
+        }
+        finally
+        {
+            thread.setContextClassLoader(previous);
+        }
+    }
+}
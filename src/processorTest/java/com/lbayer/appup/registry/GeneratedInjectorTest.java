@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.naming.Context;
+
+import com.lbayer.appup.internal.IInjector;
+import com.lbayer.appup.internal.InjectionElf;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GeneratedInjectorTest
+{
+    @Before
+    public void setUp()
+    {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, AppupInitialContextFactory.class.getName());
+    }
+
+    @Test
+    public void testInjector() throws Exception
+    {
+        assertGenerated("GeneratedInjectorTest_Holder_AppupInjector");
+
+        Holder holder = InjectionElf.newInstance(Holder.class);
+        InjectionElf.injectResources(holder);
+
+        Dependency dependency = AppupServices.get(Dependency.class);
+        Assert.assertSame(dependency, ((Base) holder).inherited);
+        Assert.assertSame(dependency, holder.shared);
+        Assert.assertSame(dependency, holder.dependency);
+        Assert.assertSame(dependency, holder.other);
+        Assert.assertEquals(Dependency.class.getName(), holder.ref.getName());
+
+        InjectionElf.invokeMethodsWithAnnotation(PostConstruct.class, holder);
+        Assert.assertTrue(holder.started);
+        Assert.assertFalse(holder.stopped);
+
+        InjectionElf.invokeMethodsWithAnnotation(PreDestroy.class, holder);
+        Assert.assertTrue(holder.stopped);
+    }
+
+    @Test
+    public void testResourceConstructor() throws Exception
+    {
+        assertGenerated("GeneratedInjectorTest_Constructed_AppupInjector");
+
+        Constructed constructed = AppupServices.get(Constructed.class);
+        Assert.assertSame(AppupServices.get(Dependency.class), constructed.dependency);
+        Assert.assertSame(constructed.dependency, constructed.other);
+    }
+
+    private static void assertGenerated(String name) throws ClassNotFoundException
+    {
+        Class<?> injector = Class.forName(GeneratedInjectorTest.class.getPackageName() + '.' + name);
+        Assert.assertTrue(IInjector.class.isAssignableFrom(injector));
+    }
+
+    @Resource
+    public static class Dependency
+    {
+    }
+
+    public static class Base
+    {
+        @Resource
+        private Dependency inherited;
+
+        @Resource
+        Dependency shared;
+    }
+
+    public static class Holder extends Base
+    {
+        @Resource
+        private Dependency dependency;
+
+        @Resource
+        private ServiceRef<Dependency> ref;
+
+        private Dependency other;
+        private boolean started;
+        private boolean stopped;
+
+        @Resource
+        public void setOther(Dependency other)
+        {
+            this.other = other;
+        }
+
+        @PostConstruct
+        public void start()
+        {
+            started = true;
+        }
+
+        @PreDestroy
+        public void stop()
+        {
+            stopped = true;
+        }
+    }
+
+    @Resource
+    public static class Constructed
+    {
+        private final Dependency dependency;
+
+        @Resource
+        Dependency other;
+
+        public Constructed()
+        {
+            throw new AssertionError("The resource constructor should be used");
+        }
+
+        @ResourceConstructor
+        public Constructed(Dependency dependency)
+        {
+            this.dependency = dependency;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.event.EventContext;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
+import javax.naming.event.ObjectChangeListener;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AppupContextTest
+{
+    @Test
+    public void testEvents()
+    {
+        AppupContext context = new AppupContext();
+        RecordingListener listener = new RecordingListener();
+        context.addNamingListener("a", EventContext.OBJECT_SCOPE, listener);
+
+        context.bind("a", "one");
+        context.bind("b", "two");
+        context.unbind("a");
+
+        Assert.assertEquals(List.of("a:" + NamingEvent.OBJECT_ADDED, "a:" + NamingEvent.OBJECT_REMOVED), listener.events);
+
+        context.removeNamingListener(listener);
+        context.bind("a", "three");
+        Assert.assertEquals(2, listener.events.size());
+    }
+
+    @Test
+    public void testEventExecutor()
+    {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+
+        AppupContext context = new AppupContext();
+        context.setEventExecutor(tasks::add, true);
+
+        RecordingListener listener = new RecordingListener();
+        context.addNamingListener("a", EventContext.OBJECT_SCOPE, listener);
+        context.addNamingListener("b", EventContext.OBJECT_SCOPE, listener);
+
+        context.bind("a", "one");
+        context.unbind("a");
+        context.bind("b", "two");
+        context.bind("a", "three");
+
+        // nothing is delivered on the binding thread, and a single drain is scheduled
+        Assert.assertTrue(listener.events.isEmpty());
+        Assert.assertEquals(1, tasks.size());
+
+        tasks.poll().run();
+
+        // the add and remove of "a" cancel out, the later events are delivered in order
+        Assert.assertEquals(List.of("b:" + NamingEvent.OBJECT_ADDED, "a:" + NamingEvent.OBJECT_ADDED), listener.events);
+    }
+
+    @Test
+    public void testConcurrentEvents() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+
+        AppupContext context = new AppupContext();
+        context.addNamingListener("", EventContext.SUBTREE_SCOPE, new RecordingListener()
+        {
+            @Override
+            public void objectChanged(NamingEvent evt)
+            {
+                delivered.add(evt.getNewBinding().getName() + ":" + Thread.currentThread().getName());
+                started.countDown();
+                try
+                {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        Thread binder = new Thread(() -> context.bind("a", "one"), "binder");
+        binder.start();
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // the listener is busy on the other thread, so this bind leaves its event to that thread and returns
+        context.bind("b", "two");
+        Assert.assertEquals(List.of("a:binder"), delivered);
+
+        release.countDown();
+        binder.join(10000);
+        Assert.assertEquals(List.of("a:binder", "b:binder"), delivered);
+    }
+
+    @Test
+    public void testEventScopes()
+    {
+        AppupContext context = new AppupContext();
+        RecordingListener object = new RecordingListener();
+        RecordingListener oneLevel = new RecordingListener();
+        RecordingListener subtree = new RecordingListener();
+        RecordingListener all = new RecordingListener();
+        context.addNamingListener("services/cache", EventContext.OBJECT_SCOPE, object);
+        context.addNamingListener("services/cache", EventContext.ONELEVEL_SCOPE, oneLevel);
+        context.addNamingListener("services/cache", EventContext.SUBTREE_SCOPE, subtree);
+        context.addNamingListener("", EventContext.SUBTREE_SCOPE, all);
+
+        context.bind("services/cache", "cache");
+        context.bind("services/cache/users", "users");
+        context.bind("services/cache/users/local", "local");
+        context.bind("services/cached", "other");
+        context.bind("other", "other");
+
+        String added = ":" + NamingEvent.OBJECT_ADDED;
+        Assert.assertEquals(List.of("services/cache" + added), object.events);
+        Assert.assertEquals(List.of("services/cache/users" + added), oneLevel.events);
+        Assert.assertEquals(List.of("services/cache" + added, "services/cache/users" + added, "services/cache/users/local" + added), subtree.events);
+        Assert.assertEquals(5, all.events.size());
+
+        context.removeNamingListener(subtree);
+        context.bind("services/cache/sessions", "sessions");
+        Assert.assertEquals(3, subtree.events.size());
+        Assert.assertEquals(2, oneLevel.events.size());
+    }
+
+    @Test
+    public void testRebind() throws Exception
+    {
+        AppupContext context = new AppupContext();
+        RecordingListener listener = new RecordingListener();
+        context.addNamingListener("a", EventContext.OBJECT_SCOPE, listener);
+
+        ServiceRef<String> ref = context.ref("a");
+        context.rebind("a", "one");
+        Assert.assertEquals("one", ref.get());
+
+        context.rebind("a", "two");
+        Assert.assertEquals("two", context.lookup("a"));
+        Assert.assertEquals("two", ref.get());
+        Assert.assertEquals(List.of("a:" + NamingEvent.OBJECT_ADDED, "a:" + NamingEvent.OBJECT_CHANGED), listener.events);
+
+        // references created after the binding start out with it
+        Assert.assertSame(ref, context.ref("a"));
+        context.bind("b", "three");
+        Assert.assertEquals("three", context.<String>ref("b").get());
+
+        context.unbind("a");
+        Assert.assertNull(ref.value);
+    }
+
+    private static class RecordingListener implements ObjectChangeListener
+    {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void objectChanged(NamingEvent evt)
+        {
+            String name = evt.getNewBinding() != null ? evt.getNewBinding().getName() : evt.getOldBinding().getName();
+            events.add(name + ":" + evt.getType());
+        }
+
+        @Override
+        public void namingExceptionThrown(NamingExceptionEvent evt)
+        {
+        }
+    }
+}
@@ -0,0 +1,686 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.naming.Binding;
+import javax.naming.CompositeName;
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingEnumeration;
+import javax.naming.NameNotFoundException;
+
+import com.lbayer.appup.internal.InjectionElf;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AppupServicesTest
+{
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, AppupInitialContextFactory.class.getName());
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testWarmUp() throws Exception
+    {
+        AppupServices.warmUp(List.of(WarmLifecycle.class), executor);
+
+        Assert.assertTrue(AppupInitialContextFactory.INSTANCE.isBound(WarmService.class.getName()));
+        Assert.assertTrue(AppupInitialContextFactory.INSTANCE.isBound(WarmDependency.class.getName()));
+        Assert.assertFalse(AppupInitialContextFactory.INSTANCE.isBound(WarmLifecycle.class.getName()));
+
+        WarmService service = InitialContext.doLookup(WarmService.class.getName());
+        Assert.assertSame(InitialContext.doLookup(WarmDependency.class.getName()), service.dependency);
+    }
+
+    @Test
+    public void testWarmUpCycle() throws Exception
+    {
+        try
+        {
+            AppupServices.warmUp(List.of(CycleA.class), executor);
+            Assert.fail("Expected cycle");
+        }
+        catch (ConfigurationException e)
+        {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("CycleA->"));
+        }
+
+        // nothing is created when a cycle is found
+        Assert.assertFalse(AppupInitialContextFactory.INSTANCE.isBound(CycleA.class.getName()));
+        Assert.assertFalse(AppupInitialContextFactory.INSTANCE.isBound(CycleB.class.getName()));
+    }
+
+    @Test
+    public void testLookupAsync() throws Exception
+    {
+        SlowService.release = new CountDownLatch(1);
+
+        CompletableFuture<SlowService> first = AppupServices.lookupAsync(SlowService.class);
+        CompletableFuture<SlowService> second = AppupServices.lookupAsync(SlowService.class);
+        Future<Object> blocking = executor.submit(() -> InitialContext.doLookup(SlowService.class.getName()));
+
+        Assert.assertFalse(first.isDone());
+        SlowService.release.countDown();
+
+        SlowService service = first.get(10, TimeUnit.SECONDS);
+        Assert.assertSame(service, second.get(10, TimeUnit.SECONDS));
+        Assert.assertSame(service, blocking.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, SlowService.created.get());
+
+        Assert.assertSame(service, AppupServices.lookupAsync(SlowService.class).getNow(null));
+    }
+
+    @Test
+    public void testLookupExecutor() throws Exception
+    {
+        AppupContext context = new AppupContext();
+        try
+        {
+            AtomicInteger used = new AtomicInteger();
+            context.setLookupExecutor(command -> {
+                used.incrementAndGet();
+                executor.execute(command);
+            });
+            Assert.assertNotNull(context.lookupAsync(AsyncService.class.getName()).get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, used.get());
+
+            // the default executor is started again after the context has been closed
+            context.setLookupExecutor(null);
+            context.close();
+            Assert.assertNotNull(context.lookupAsync(AsyncService.class.getName()).get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, used.get());
+        }
+        finally
+        {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testLookupAsyncMissing() throws Exception
+    {
+        try
+        {
+            AppupServices.lookupAsync(Runnable.class).get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected failure");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof NameNotFoundException);
+        }
+    }
+
+    @Test
+    public void testGet() throws Exception
+    {
+        WarmService service = AppupServices.get(WarmService.class);
+        Assert.assertSame(service, AppupServices.lookup(WarmService.class.getName()));
+        Assert.assertSame(service, InitialContext.doLookup(WarmService.class.getName()));
+        Assert.assertSame(service, new InitialContext().lookup(new CompositeName("java:comp/env/" + WarmService.class.getName())));
+        Assert.assertSame(AppupServices.get(WarmDependency.class), service.dependency);
+    }
+
+    @Test
+    public void testServiceRef() throws Exception
+    {
+        RefHolder holder = new RefHolder();
+        InjectionElf.injectResources(holder);
+
+        Assert.assertEquals(Swappable.class.getName(), holder.swappable.getName());
+        Assert.assertSame(holder.swappable, holder.named);
+
+        Swappable first = () -> "first";
+        new InitialContext().bind(Swappable.class.getName(), first);
+        Assert.assertSame(first, holder.swappable.get());
+
+        Swappable second = () -> "second";
+        new InitialContext().rebind(Swappable.class.getName(), second);
+        Assert.assertEquals("second", holder.swappable.get().getValue());
+        Assert.assertSame(second, AppupServices.get(Swappable.class));
+    }
+
+    @Test
+    public void testResourceConstructor() throws Exception
+    {
+        Assert.assertEquals(List.of(WarmDependency.class.getName(), WarmService.class.getName()), InjectionElf.getResourceNames(ConstructedService.class));
+
+        ConstructedService service = AppupServices.get(ConstructedService.class);
+        Assert.assertSame(AppupServices.get(WarmDependency.class), service.dependency);
+        Assert.assertEquals(Swappable.class.getName(), service.swappable.getName());
+        Assert.assertSame(AppupServices.get(WarmService.class), service.service);
+    }
+
+    @Test
+    public void testParallelInjection() throws Exception
+    {
+        InjectionElf.setParallelInjection(true);
+        try
+        {
+            ParallelHolder holder = new ParallelHolder();
+            InjectionElf.injectResources(holder);
+
+            // each service waits for the other to start, which only works if they are created concurrently
+            Assert.assertTrue(holder.first.concurrent);
+            Assert.assertTrue(holder.second.concurrent);
+            Assert.assertSame(AppupServices.get(WarmDependency.class), holder.dependency);
+
+            try
+            {
+                InjectionElf.injectResources(new MissingHolder());
+                Assert.fail("Expected failure");
+            }
+            catch (IllegalStateException e)
+            {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("field runnable(java.lang.Runnable)"));
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("setCallable(java.util.concurrent.Callable)"));
+                Assert.assertEquals(1, e.getSuppressed().length);
+            }
+
+            ParallelConstructed constructed = InjectionElf.newInstance(ParallelConstructed.class);
+            Assert.assertTrue(constructed.first.concurrent);
+            Assert.assertTrue(constructed.second.concurrent);
+
+            try
+            {
+                InjectionElf.newInstance(MissingConstructed.class);
+                Assert.fail("Expected failure");
+            }
+            catch (IllegalStateException e)
+            {
+                Assert.assertTrue(e.getMessage(), e.getMessage().matches("(?s).*constructor \\w+\\(java.lang.Runnable\\).*"));
+                Assert.assertTrue(e.getMessage(), e.getMessage().matches("(?s).*constructor \\w+\\(java.util.concurrent.Callable\\).*"));
+            }
+        }
+        finally
+        {
+            InjectionElf.setParallelInjection(false);
+        }
+    }
+
+    @Test
+    public void testTryLookup() throws Exception
+    {
+        Assert.assertFalse(AppupServices.tryLookup(Optional.class).isPresent());
+        Assert.assertFalse(AppupServices.tryLookup(Optional.class).isPresent());
+
+        try
+        {
+            InitialContext.doLookup(Optional.class.getName());
+            Assert.fail("Expected failure");
+        }
+        catch (NameNotFoundException e)
+        {
+            // expected
+        }
+
+        // binding the name invalidates the negative cache
+        Optional<String> value = Optional.of("bound");
+        new InitialContext().bind(Optional.class.getName(), value);
+        Assert.assertSame(value, AppupServices.tryLookup(Optional.class).get());
+
+        Assert.assertSame(AppupServices.tryLookup(WarmDependency.class).get(), InitialContext.doLookup(WarmDependency.class.getName()));
+    }
+
+    @Test
+    public void testNegativeCachePerClassLoader() throws Exception
+    {
+        AppupContext context = new AppupContext();
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        try
+        {
+            // missing for a class loader that can't see the test classes, but not for the one that can
+            thread.setContextClassLoader(new URLClassLoader(new URL[0], null));
+            Assert.assertFalse(context.tryLookup(LoaderService.class.getName()).isPresent());
+
+            thread.setContextClassLoader(original);
+            Assert.assertTrue(context.tryLookup(LoaderService.class.getName()).isPresent());
+        }
+        finally
+        {
+            thread.setContextClassLoader(original);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testNegativeCacheEviction() throws Exception
+    {
+        AppupContext context = new AppupContext();
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        CountingClassLoader loader = new CountingClassLoader();
+        try
+        {
+            thread.setContextClassLoader(loader);
+            for (int i = 0; i < 1024; i++)
+            {
+                Assert.assertFalse(context.tryLookup("missing." + i).isPresent());
+            }
+
+            // using the oldest name keeps it, so the next new name drops the second oldest instead
+            Assert.assertFalse(context.tryLookup("missing.0").isPresent());
+            Assert.assertFalse(context.tryLookup("missing.1024").isPresent());
+            Assert.assertFalse(context.tryLookup("missing.0").isPresent());
+            Assert.assertFalse(context.tryLookup("missing.1").isPresent());
+
+            Assert.assertEquals(1, loader.count("missing.0"));
+            Assert.assertEquals(2, loader.count("missing.1"));
+            Assert.assertEquals(1, loader.count("missing.2"));
+        }
+        finally
+        {
+            thread.setContextClassLoader(original);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testServiceProviders() throws Exception
+    {
+        List<Object> providers = new ArrayList<>();
+        NamingEnumeration<Binding> bindings = new InitialContext().listBindings(Provided.class.getName());
+        while (bindings.hasMore())
+        {
+            providers.add(bindings.next().getObject());
+        }
+
+        Assert.assertEquals(2, providers.size());
+        Assert.assertTrue(providers.get(0) instanceof FirstProvider);
+        Assert.assertTrue(providers.get(1) instanceof SecondProvider);
+    }
+
+    @Test
+    public void testServiceIndex() throws Exception
+    {
+        File dir = Files.createTempDirectory("services").toFile();
+        File jar = new File(dir, "services.jar");
+        File cacheFile = new File(dir, "service.cache");
+        try
+        {
+            writeJar(jar, "com.example.First\n");
+            try (URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null))
+            {
+                ServiceIndex index = ServiceIndex.build(loader, cacheFile);
+                Assert.assertEquals(List.of("com.example.First"), index.getProviders("com.example.Service"));
+                Assert.assertEquals(List.of(), index.getProviders("com.example.Other"));
+                Assert.assertTrue(cacheFile.isFile());
+
+                // same size and modification time, so the cached providers are used
+                long lastModified = jar.lastModified();
+                writeJar(jar, "com.example.Other\n");
+                Assert.assertTrue(jar.setLastModified(lastModified));
+                Assert.assertEquals(List.of("com.example.First"), ServiceIndex.build(loader, cacheFile).getProviders("com.example.Service"));
+
+                Assert.assertTrue(jar.setLastModified(lastModified + 2000));
+                Assert.assertEquals(List.of("com.example.Other"), ServiceIndex.build(loader, cacheFile).getProviders("com.example.Service"));
+            }
+        }
+        finally
+        {
+            jar.delete();
+            cacheFile.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testServiceIndexManifestClassPath() throws Exception
+    {
+        File dir = Files.createTempDirectory("services").toFile();
+        File lib = new File(dir, "lib dir");
+        File main = new File(lib, "main.jar");
+        File dependency = new File(lib, "other dir/dependency.jar");
+        try
+        {
+            Assert.assertTrue(dependency.getParentFile().mkdirs());
+            writeJar(dependency, "com.example.Dependency\n");
+
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, "other%20dir/dependency.jar");
+            new JarOutputStream(new FileOutputStream(main), manifest).close();
+
+            try (URLClassLoader loader = new URLClassLoader(new URL[] { main.toURI().toURL() }, null))
+            {
+                Assert.assertEquals(List.of("com.example.Dependency"), ServiceIndex.build(loader, null).getProviders("com.example.Service"));
+            }
+        }
+        finally
+        {
+            dependency.delete();
+            dependency.getParentFile().delete();
+            main.delete();
+            lib.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testServiceIndexPerClassLoader() throws Exception
+    {
+        File dir = Files.createTempDirectory("services").toFile();
+        File first = new File(dir, "first.jar");
+        File second = new File(dir, "second.jar");
+        AppupContext context = new AppupContext();
+        try
+        {
+            writeJar(first, "com.example.First\n");
+            writeJar(second, "com.example.Second\n");
+            try (URLClassLoader firstLoader = new URLClassLoader(new URL[] { first.toURI().toURL() }, null);
+                 URLClassLoader secondLoader = new URLClassLoader(new URL[] { second.toURI().toURL() }, null))
+            {
+                Assert.assertEquals(List.of("com.example.First"), context.getServiceProviders("com.example.Service", firstLoader));
+                Assert.assertEquals(List.of("com.example.Second"), context.getServiceProviders("com.example.Service", secondLoader));
+                Assert.assertEquals(List.of("com.example.First"), context.getServiceProviders("com.example.Service", firstLoader));
+            }
+        }
+        finally
+        {
+            context.close();
+            first.delete();
+            second.delete();
+            dir.delete();
+        }
+    }
+
+    private static void writeJar(File jar, String providers) throws IOException
+    {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar)))
+        {
+            out.putNextEntry(new JarEntry("META-INF/services/com.example.Service"));
+            out.write(providers.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+    }
+
+    public interface Swappable
+    {
+        String getValue();
+    }
+
+    public static class RefHolder
+    {
+        @Resource
+        private ServiceRef<Swappable> swappable;
+
+        private ServiceRef<Swappable> named;
+
+        @Resource(name = "com.lbayer.appup.registry.AppupServicesTest$Swappable")
+        public void setNamed(ServiceRef<Swappable> named)
+        {
+            this.named = named;
+        }
+    }
+
+    public interface Provided
+    {
+    }
+
+    public static class FirstProvider implements Provided
+    {
+    }
+
+    public static class SecondProvider implements Provided
+    {
+    }
+
+    public static class WarmLifecycle
+    {
+        @Resource
+        private WarmService service;
+    }
+
+    @Resource
+    public static class WarmService
+    {
+        private WarmDependency dependency;
+
+        @Resource
+        public void setDependency(WarmDependency dependency)
+        {
+            this.dependency = dependency;
+        }
+    }
+
+    @Resource
+    public static class WarmDependency
+    {
+    }
+
+    @Resource
+    public static class ConstructedService
+    {
+        private final WarmDependency dependency;
+        private final ServiceRef<Swappable> swappable;
+
+        @Resource
+        private WarmService service;
+
+        public ConstructedService()
+        {
+            throw new AssertionError("The resource constructor should be used");
+        }
+
+        @ResourceConstructor
+        public ConstructedService(WarmDependency dependency, ServiceRef<Swappable> swappable)
+        {
+            this.dependency = dependency;
+            this.swappable = swappable;
+        }
+    }
+
+    public static class ParallelHolder
+    {
+        @Resource
+        private ParallelFirst first;
+
+        @Resource
+        private ParallelSecond second;
+
+        @Resource
+        private WarmDependency dependency;
+    }
+
+    public static class MissingHolder
+    {
+        @Resource
+        private Runnable runnable;
+
+        @Resource
+        public void setCallable(Callable<?> callable)
+        {
+        }
+    }
+
+    public static class ParallelConstructed
+    {
+        private final ConstructedFirst first;
+        private final ConstructedSecond second;
+
+        @ResourceConstructor
+        public ParallelConstructed(ConstructedFirst first, ConstructedSecond second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    public static class MissingConstructed
+    {
+        @ResourceConstructor
+        public MissingConstructed(Runnable runnable, Callable<?> callable)
+        {
+        }
+    }
+
+    private static final CountDownLatch parallelStarted = new CountDownLatch(2);
+    private static final CountDownLatch constructedStarted = new CountDownLatch(2);
+
+    @Resource
+    public static class ConstructedFirst
+    {
+        private boolean concurrent;
+
+        @PostConstruct
+        public void init() throws InterruptedException
+        {
+            constructedStarted.countDown();
+            concurrent = constructedStarted.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Resource
+    public static class ConstructedSecond
+    {
+        private boolean concurrent;
+
+        @PostConstruct
+        public void init() throws InterruptedException
+        {
+            constructedStarted.countDown();
+            concurrent = constructedStarted.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Resource
+    public static class ParallelFirst
+    {
+        private boolean concurrent;
+
+        @PostConstruct
+        public void init() throws InterruptedException
+        {
+            parallelStarted.countDown();
+            concurrent = parallelStarted.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Resource
+    public static class ParallelSecond
+    {
+        private boolean concurrent;
+
+        @PostConstruct
+        public void init() throws InterruptedException
+        {
+            parallelStarted.countDown();
+            concurrent = parallelStarted.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Resource
+    public static class SlowService
+    {
+        private static final AtomicInteger created = new AtomicInteger();
+        private static volatile CountDownLatch release;
+
+        @PostConstruct
+        public void init() throws InterruptedException
+        {
+            created.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Resource
+    public static class AsyncService
+    {
+    }
+
+    @Resource
+    public static class LoaderService
+    {
+    }
+
+    private static class CountingClassLoader extends ClassLoader
+    {
+        private final Map<String, Integer> loads = new ConcurrentHashMap<>();
+
+        CountingClassLoader()
+        {
+            super(null);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            loads.merge(name, 1, Integer::sum);
+            return super.loadClass(name, resolve);
+        }
+
+        int count(String name)
+        {
+            return loads.getOrDefault(name, 0);
+        }
+    }
+
+    @Resource
+    public static class CycleA
+    {
+        @Resource
+        private CycleB b;
+    }
+
+    @Resource
+    public static class CycleB
+    {
+        @Resource
+        private CycleA a;
+    }
+}
@@ -3,15 +3,36 @@ package com.lbayer.appup.registry;
 import org.junit.Assert;
 import org.junit.Test;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 public class ContribRegistryTest
 {
@@ -60,6 +81,184 @@ public class ContribRegistryTest
         elements[0].createInstance("class");
     }
 
+    @Test
+    public void testPrewarm() throws Throwable
+    {
+        CountingClassLoader loader = new CountingClassLoader(getClass().getClassLoader());
+        ContribRegistry registry = new ContribRegistry(loader);
+        URL resource = getPluginURL();
+        try (InputStream in = resource.openStream())
+        {
+            registry.register(resource, "test", in);
+        }
+
+        registry.prewarmClasses(Arrays.asList("object", "bad-object", "none"), 2).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(1, loader.count("not.a.ClassName"));
+
+        Assert.assertEquals(Object.class, registry.getContribElementsFor("object")[0].createClass("class"));
+
+        IContribElement bad = registry.getContribElementsFor("bad-object")[0];
+        List<ClassNotFoundException> thrown = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                bad.createClass("class");
+                Assert.fail("Class should not be found");
+            }
+            catch (ContribException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof ClassNotFoundException);
+                thrown.add((ClassNotFoundException) e.getCause());
+            }
+        }
+
+        // the failure is served from the cache, but with a fresh exception each time
+        Assert.assertEquals(1, loader.count("not.a.ClassName"));
+        Assert.assertNotSame(thrown.get(0), thrown.get(1));
+
+        // registering another plugin forgets the missing names
+        try (InputStream in = new ByteArrayInputStream("<plugin/>".getBytes(StandardCharsets.UTF_8)))
+        {
+            registry.register(resource, "other", in);
+        }
+
+        try
+        {
+            bad.createClass("class");
+            Assert.fail("Class should not be found");
+        }
+        catch (ContribException e)
+        {
+            Assert.assertEquals(2, loader.count("not.a.ClassName"));
+        }
+    }
+
+    @Test
+    public void testScopes() throws Throwable
+    {
+        Counted.created.set(0);
+        Counted.destroyed.set(0);
+
+        ContribRegistry registry = loadRegistry();
+        IContribElement singleton = registry.getContribElementsFor("scoped")[0];
+        Object instance = singleton.createInstance("class");
+        Assert.assertSame(instance, singleton.createInstance("class"));
+        Assert.assertNotSame(instance, singleton.createInstance("class", ContribScope.PROTOTYPE));
+        Assert.assertEquals(2, Counted.created.get());
+
+        IContribElement pooled = registry.getContribElementsFor("scoped")[1];
+        Object first = pooled.createInstance("class");
+        Object second = pooled.createInstance("class");
+        Assert.assertNotSame(first, second);
+
+        // the pool holds a single instance, so the second one is destroyed on release
+        pooled.releaseInstance("class", first);
+        pooled.releaseInstance("class", second);
+        Assert.assertEquals(1, Counted.destroyed.get());
+        Assert.assertSame(first, pooled.createInstance("class"));
+        pooled.releaseInstance("class", first);
+
+        // instances that did not come from the pool are destroyed rather than pooled
+        Object prototype = pooled.createInstance("class", ContribScope.PROTOTYPE);
+        pooled.releaseInstance("class", prototype);
+        Assert.assertEquals(2, Counted.destroyed.get());
+        Assert.assertSame(first, pooled.createInstance("class"));
+        pooled.releaseInstance("class", first);
+
+        registry.close();
+        Assert.assertEquals(5, Counted.created.get());
+        Assert.assertEquals(4, Counted.destroyed.get());
+        Assert.assertNotSame(instance, singleton.createInstance("class"));
+    }
+
+    @Test
+    public void testSingletonCreatedOutsideLock() throws Throwable
+    {
+        String xml = "<plugin><extension point='slow'><slow class='" + Slow.class.getName() + "' other='"
+                + Counted.class.getName() + "'/></extension></plugin>";
+        ContribRegistry registry = new ContribRegistry(getClass().getClassLoader());
+        registry.register(getPluginURL(), "slow", new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        IContribElement element = registry.getContribElementsFor("slow")[0];
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try
+        {
+            Future<Object> first = executor.submit(() -> element.createInstance("class", ContribScope.SINGLETON));
+            Assert.assertTrue(Slow.started.await(10, TimeUnit.SECONDS));
+            Future<Object> second = executor.submit(() -> element.createInstance("class", ContribScope.SINGLETON));
+
+            // the element is not locked while the singleton is being constructed
+            Object pooled = executor.submit(() -> element.createInstance("other", ContribScope.POOLED)).get(10, TimeUnit.SECONDS);
+            element.releaseInstance("other", pooled);
+
+            Slow.proceed.countDown();
+            Assert.assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, Slow.created.get());
+        }
+        finally
+        {
+            Slow.proceed.countDown();
+            executor.shutdown();
+            registry.close();
+        }
+    }
+
+    @Test
+    public void testDefaultScopes() throws Throwable
+    {
+        IContribElement element = (IContribElement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { IContribElement.class },
+                (proxy, method, args) -> method.isDefault() ? InvocationHandler.invokeDefault(proxy, method, args) : "instance");
+
+        Assert.assertEquals("instance", element.createInstance("class", ContribScope.PROTOTYPE));
+        for (ContribScope scope : Arrays.asList(ContribScope.SINGLETON, ContribScope.POOLED))
+        {
+            try
+            {
+                element.createInstance("class", scope);
+                Assert.fail("Scope should not be supported: " + scope);
+            }
+            catch (ContribException e)
+            {
+                Assert.assertTrue(e.getMessage().contains(scope.toString()));
+            }
+        }
+    }
+
+    public static class Slow
+    {
+        private static final CountDownLatch started = new CountDownLatch(1);
+        private static final CountDownLatch proceed = new CountDownLatch(1);
+        private static final AtomicInteger created = new AtomicInteger();
+
+        @PostConstruct
+        public void init() throws InterruptedException
+        {
+            created.incrementAndGet();
+            started.countDown();
+            proceed.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    public static class Counted
+    {
+        private static final AtomicInteger created = new AtomicInteger();
+        private static final AtomicInteger destroyed = new AtomicInteger();
+
+        @PostConstruct
+        public void init()
+        {
+            created.incrementAndGet();
+        }
+
+        @PreDestroy
+        public void destroy()
+        {
+            destroyed.incrementAndGet();
+        }
+    }
+
     @Test
     public void testNone() throws Throwable
     {
@@ -97,6 +296,212 @@ public class ContribRegistryTest
         Assert.assertEquals("bottom", bottom[0].getName());
     }
 
+    @Test
+    public void testSharedLists() throws Throwable
+    {
+        ContribRegistry registry = loadRegistry();
+
+        List<IContribElement> nested = registry.getContribElements("nested");
+        Assert.assertEquals(1, nested.size());
+        Assert.assertSame(nested, registry.getContribElements("nested"));
+        Assert.assertTrue(registry.getContribElements("none").isEmpty());
+
+        IContribElement top = nested.get(0);
+        List<IContribElement> middle = top.getChildElements("middle");
+        Assert.assertEquals(1, middle.size());
+        Assert.assertSame(middle, top.getChildElements("middle"));
+        Assert.assertEquals("middle-value", middle.get(0).getAttribute("value"));
+        Assert.assertTrue(top.getChildElements("nothing").isEmpty());
+
+        try
+        {
+            nested.clear();
+            Assert.fail("Contribution lists should not be modifiable");
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFind() throws Throwable
+    {
+        ContribRegistry registry = loadRegistry();
+        assertFind(registry);
+
+        registry.addAttributeIndex("value");
+        registry.addAttributeIndex("class");
+        assertFind(registry);
+
+        // indexes are rebuilt when the contributions change
+        try (InputStream in = getPluginURL().openStream())
+        {
+            registry.register(getPluginURL(), "other", in);
+        }
+        Assert.assertEquals(2, registry.find("nested", "top/middle/bottom", "value", "bottom-value").size());
+
+        registry.unregister("other");
+        assertFind(registry);
+    }
+
+    @Test
+    public void testFindNullValue() throws Throwable
+    {
+        ContribRegistry registry = loadRegistry();
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                registry.find("nested", "top", "value", null);
+                Assert.fail("Expected failure");
+            }
+            catch (NullPointerException e)
+            {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("must not be null"));
+            }
+
+            registry.addAttributeIndex("value");
+        }
+    }
+
+    private void assertFind(IContribRegistry registry)
+    {
+        List<IContribElement> bottom = registry.find("nested", "top/middle/bottom", "value", "bottom-value");
+        Assert.assertEquals(1, bottom.size());
+        Assert.assertEquals("bottom", bottom.get(0).getName());
+
+        Assert.assertEquals(1, registry.find("nested", "top", "value", "top-value").size());
+        Assert.assertEquals(0, registry.find("nested", "top", "value", "middle-value").size());
+        Assert.assertEquals(0, registry.find("nested", "top/nothing", "value", "top-value").size());
+        Assert.assertEquals(0, registry.find("none", "top", "value", "top-value").size());
+
+        List<IContribElement> listeners = registry.find("object", "listener", "class", "java.lang.Object");
+        Assert.assertEquals(1, listeners.size());
+    }
+
+    @Test
+    public void testIndex() throws Throwable
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ContribIndexCompiler.compile(out, getPluginFile());
+
+        ContribRegistry registry = new ContribRegistry(getClass().getClassLoader());
+        registry.registerIndex(getPluginURL(), "test", new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals(0, registry.getContribElementsFor("none").length);
+        Assert.assertEquals(1, registry.getContribElementsFor("object").length);
+
+        IContribElement[] nested = registry.getContribElementsFor("nested");
+        Assert.assertEquals(1, nested.length);
+        Assert.assertEquals("top-value", nested[0].getAttribute("value"));
+        Assert.assertEquals("test", nested[0].getOwner());
+        Assert.assertEquals(1, nested[0].getChildren("empty").length);
+
+        IContribElement[] bottom = nested[0].getChildren("middle")[0].getChildren("bottom");
+        Assert.assertEquals(1, bottom.length);
+        Assert.assertEquals("bottom-value", bottom[0].getAttribute("value"));
+    }
+
+    private File getPluginFile() throws URISyntaxException
+    {
+        return new File(getPluginURL().toURI());
+    }
+
+    @Test
+    public void testLazy() throws Throwable
+    {
+        ContribRegistry registry = new ContribRegistry(getClass().getClassLoader());
+        registry.setLazy(true);
+
+        try (InputStream in = getPluginURL().openStream())
+        {
+            registry.register(getPluginURL(), "test", in);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ContribIndexCompiler.compile(out, getPluginFile());
+        registry.registerIndex(getPluginURL(), "other", new ByteArrayInputStream(out.toByteArray()));
+
+        List<List<IContribElement>> results = new ArrayList<>();
+        runAndWait(20, () -> {
+            List<IContribElement> nested = registry.getContribElements("nested");
+            synchronized (results)
+            {
+                results.add(nested);
+            }
+        });
+
+        // every thread sees the same elements, built only once
+        for (List<IContribElement> nested : results)
+        {
+            Assert.assertSame(results.get(0), nested);
+        }
+
+        List<IContribElement> nested = results.get(0);
+        Assert.assertEquals(2, nested.size());
+        Assert.assertEquals("test", nested.get(0).getOwner());
+        Assert.assertEquals("other", nested.get(1).getOwner());
+        Assert.assertEquals("bottom-value", nested.get(0).getChildren("middle")[0].getChildren("bottom")[0].getAttribute("value"));
+
+        Assert.assertTrue(registry.unregister("test"));
+        Assert.assertEquals(1, registry.getContribElementsFor("object").length);
+        Assert.assertEquals("other", registry.getContribElementsFor("object")[0].getOwner());
+        Assert.assertEquals(0, registry.getContribElementsFor("none").length);
+    }
+
+    @Test
+    public void testCache() throws Throwable
+    {
+        File dir = Files.createTempDirectory("appup").toFile();
+        File jar = new File(dir, "plugin.jar");
+        File cacheFile = new File(dir, "contrib.cache");
+
+        String original = "<plugin><extension point=\"cached\"><item value=\"one\"/></extension></plugin>";
+        writeJar(jar, original);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null))
+        {
+            Assert.assertEquals("one", loadCached(loader, cacheFile).getContribElementsFor("cached")[0].getAttribute("value"));
+            Assert.assertTrue(cacheFile.isFile());
+
+            // same size and modification time, so the cached contributions are used
+            long lastModified = jar.lastModified();
+            writeJar(jar, original.replace("one", "two"));
+            Assert.assertTrue(jar.setLastModified(lastModified));
+            Assert.assertEquals("one", loadCached(loader, cacheFile).getContribElementsFor("cached")[0].getAttribute("value"));
+
+            // a changed jar is parsed again
+            writeJar(jar, original.replace("one", "three"));
+            Assert.assertTrue(jar.setLastModified(lastModified + 2000));
+            Assert.assertEquals("three", loadCached(loader, cacheFile).getContribElementsFor("cached")[0].getAttribute("value"));
+        }
+        finally
+        {
+            jar.delete();
+            cacheFile.delete();
+            dir.delete();
+        }
+    }
+
+    private ContribRegistry loadCached(ClassLoader loader, File cacheFile) throws IOException
+    {
+        ContribRegistry registry = new ContribRegistry(loader);
+        registry.setCacheFile(cacheFile);
+        registry.initializeFromClassLoader();
+        return registry;
+    }
+
+    private static void writeJar(File jar, String pluginXml) throws IOException
+    {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar)))
+        {
+            out.putNextEntry(new JarEntry("plugin.xml"));
+            out.write(pluginXml.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+    }
+
     @Test
     public void testConcurrent() throws Throwable
     {
@@ -109,6 +514,105 @@ public class ContribRegistryTest
         });
     }
 
+    @Test
+    public void testUnregister() throws Throwable
+    {
+        ContribRegistry registry = loadRegistry();
+        try (InputStream in = getPluginURL().openStream())
+        {
+            registry.register(getPluginURL(), "other", in);
+        }
+
+        Assert.assertEquals(2, registry.getContribElementsFor("nested").length);
+
+        Assert.assertTrue(registry.unregister("test"));
+        IContribElement[] nested = registry.getContribElementsFor("nested");
+        Assert.assertEquals(1, nested.length);
+        Assert.assertEquals("other", nested[0].getOwner());
+
+        Assert.assertFalse(registry.unregister("test"));
+        Assert.assertTrue(registry.unregister("other"));
+        Assert.assertEquals(0, registry.getContribElementsFor("nested").length);
+    }
+
+    @Test
+    public void testRetainedSize() throws Throwable
+    {
+        ContribRegistry registry = new ContribRegistry(getClass().getClassLoader());
+        Assert.assertEquals(0, registry.estimateRetainedSize());
+
+        try (InputStream in = getPluginURL().openStream())
+        {
+            registry.register(getPluginURL(), "test", in);
+        }
+        long size = registry.estimateRetainedSize();
+        Assert.assertTrue(size > 0);
+
+        // a second copy of the same plugin shares its names, so it costs less than the first
+        try (InputStream in = getPluginURL().openStream())
+        {
+            registry.register(getPluginURL(), "other", in);
+        }
+        long doubled = registry.estimateRetainedSize();
+        Assert.assertTrue(doubled > size);
+        Assert.assertTrue(doubled < size * 2);
+
+        registry.unregister("other");
+        Assert.assertEquals(size, registry.estimateRetainedSize());
+    }
+
+    @Test
+    public void testManyOwners() throws Throwable
+    {
+        ContribRegistry registry = new ContribRegistry(getClass().getClassLoader());
+        for (int i = 0; i < 500; i++)
+        {
+            try (InputStream in = getPluginURL().openStream())
+            {
+                registry.register(getPluginURL(), "owner" + i, in);
+            }
+        }
+
+        IContribElement[] elements = registry.getContribElementsFor("object");
+        Assert.assertEquals(500, elements.length);
+        Assert.assertSame(elements, registry.getContribElementsFor("object"));
+        Assert.assertSame(registry.getContribElements("object"), registry.getContribElements("object"));
+
+        registry.unregister("owner0");
+        Assert.assertEquals(499, registry.getContribElementsFor("object").length);
+    }
+
+    @Test
+    public void testConcurrentRegister() throws Throwable
+    {
+        ContribRegistry registry = loadRegistry();
+
+        runAndWait(20, () -> {
+            String owner = Thread.currentThread().getName();
+            for (int i = 0; i < 50; i++)
+            {
+                try (InputStream in = getPluginURL().openStream())
+                {
+                    registry.register(getPluginURL(), owner, in);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+
+                // the owner's own contributions are published all at once, and the original ones never disappear
+                IContribElement[] elems = registry.getContribElementsFor("nested");
+                Assert.assertTrue(elems.length >= 2);
+                Assert.assertTrue(registry.getContribElementsFor("object").length >= 2);
+
+                Assert.assertTrue(registry.unregister(owner));
+            }
+        });
+
+        Assert.assertEquals(1, registry.getContribElementsFor("nested").length);
+        Assert.assertEquals("test", registry.getContribElementsFor("nested")[0].getOwner());
+    }
+
     private void runAndWait(int concurrency, Runnable task) throws Throwable
     {
         ExecutorService pool = Executors.newFixedThreadPool(concurrency);
@@ -133,4 +637,27 @@ public class ContribRegistryTest
 
         pool.shutdown();
     }
+
+    private static class CountingClassLoader extends ClassLoader
+    {
+        private final ConcurrentMap<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+
+        CountingClassLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            loads.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+            return super.loadClass(name, resolve);
+        }
+
+        int count(String name)
+        {
+            AtomicInteger count = loads.get(name);
+            return count != null ? count.get() : 0;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.lbayer.appup.registry;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -8,6 +9,7 @@ import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 import javax.naming.NamingException;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 public class DeadlockTest
@@ -59,8 +61,62 @@ public class DeadlockTest
         }
     }
 
+    @Test
+    public void testIndependentServicesStartConcurrently() throws Exception
+    {
+        // each service waits in its constructor until the other one is being created as well, which could never
+        // happen if only a single service could be created at a time.
+        startLatch = new CountDownLatch(2);
+
+        @SuppressWarnings("resource")
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AppupContext context = new AppupContext();
+        Future<Object> a = executor.submit(() -> context.lookup(FirstService.class.getName()));
+        Future<Object> b = executor.submit(() -> context.lookup(SecondService.class.getName()));
+
+        Assert.assertTrue(a.get(10, TimeUnit.SECONDS) instanceof FirstService);
+        Assert.assertTrue(b.get(10, TimeUnit.SECONDS) instanceof SecondService);
+        executor.shutdown();
+    }
+
+    private static volatile CountDownLatch startLatch;
+
+    private static void awaitStart()
+    {
+        startLatch.countDown();
+        try
+        {
+            if (!startLatch.await(10, TimeUnit.SECONDS))
+            {
+                throw new IllegalStateException("Services were not created concurrently");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Resource
     public static class ArbitraryService
     {
     }
+
+    @Resource
+    public static class FirstService
+    {
+        public FirstService()
+        {
+            awaitStart();
+        }
+    }
+
+    @Resource
+    public static class SecondService
+    {
+        public SecondService()
+        {
+            awaitStart();
+        }
+    }
 }
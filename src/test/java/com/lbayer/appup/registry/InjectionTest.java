@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 Leo Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lbayer.appup.registry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.naming.ConfigurationException;
+import javax.naming.Context;
+
+import com.lbayer.appup.internal.InjectionElf;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Covers the reflective injector, and the method handle injector when run with <code>appup.injector=methodHandles</code>.
+ */
+public class InjectionTest
+{
+    @Before
+    public void setUp()
+    {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, AppupInitialContextFactory.class.getName());
+    }
+
+    @Test
+    public void testInjectResources() throws Exception
+    {
+        Injected injected = InjectionElf.newInstance(Injected.class);
+        InjectionElf.injectResources(injected);
+
+        Dependency dependency = AppupServices.get(Dependency.class);
+        Assert.assertSame(dependency, ((Base) injected).inherited);
+        Assert.assertSame(dependency, injected.field);
+        Assert.assertSame(dependency, injected.setter);
+        Assert.assertSame(dependency, Injected.staticField);
+        Assert.assertSame(dependency, Injected.staticSetter);
+        Assert.assertEquals(Dependency.class.getName(), injected.ref.getName());
+    }
+
+    @Test
+    public void testCallbacks() throws Exception
+    {
+        Injected injected = InjectionElf.newInstance(Injected.class);
+
+        InjectionElf.invokeMethodsWithAnnotation(PostConstruct.class, injected);
+        Assert.assertEquals(1, injected.started);
+        Assert.assertEquals(0, injected.stopped);
+
+        InjectionElf.invokeMethodsWithAnnotation(PreDestroy.class, injected);
+        Assert.assertEquals(1, injected.started);
+        Assert.assertEquals(1, injected.stopped);
+    }
+
+    @Test
+    public void testConstructors() throws Exception
+    {
+        Assert.assertNotSame(InjectionElf.newInstance(Injected.class), InjectionElf.newInstance(Injected.class));
+
+        Constructed constructed = InjectionElf.newInstance(Constructed.class);
+        Assert.assertSame(AppupServices.get(Dependency.class), constructed.dependency);
+        Assert.assertEquals(Dependency.class.getName(), constructed.ref.getName());
+    }
+
+    @Test
+    public void testServiceRefRequiresAppupContext() throws Exception
+    {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, "com.example.OtherContextFactory");
+        try
+        {
+            InjectionElf.injectResources(new RefOnly());
+            Assert.fail("Expected failure");
+        }
+        catch (IllegalStateException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof ConfigurationException);
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("appup initial context"));
+        }
+        finally
+        {
+            System.setProperty(Context.INITIAL_CONTEXT_FACTORY, AppupInitialContextFactory.class.getName());
+        }
+    }
+
+    @Resource
+    public static class Dependency
+    {
+    }
+
+    public static class Base
+    {
+        @Resource
+        private Dependency inherited;
+    }
+
+    public static class Injected extends Base
+    {
+        @Resource
+        private static Dependency staticField;
+
+        private static Dependency staticSetter;
+
+        @Resource
+        private Dependency field;
+
+        @Resource
+        private ServiceRef<Dependency> ref;
+
+        private Dependency setter;
+        private int started;
+        private int stopped;
+
+        @Resource
+        private static void setStaticSetter(Dependency dependency)
+        {
+            staticSetter = dependency;
+        }
+
+        @Resource
+        public void setSetter(Dependency setter)
+        {
+            this.setter = setter;
+        }
+
+        @PostConstruct
+        public void start()
+        {
+            started++;
+        }
+
+        @PreDestroy
+        public void stop()
+        {
+            stopped++;
+        }
+    }
+
+    public static class RefOnly
+    {
+        @Resource
+        private ServiceRef<Dependency> ref;
+    }
+
+    public static class Constructed
+    {
+        private final Dependency dependency;
+        private final ServiceRef<Dependency> ref;
+
+        @ResourceConstructor
+        public Constructed(Dependency dependency, ServiceRef<Dependency> ref)
+        {
+            this.dependency = dependency;
+            this.ref = ref;
+        }
+    }
+}